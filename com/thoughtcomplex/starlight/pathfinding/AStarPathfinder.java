@@ -0,0 +1,59 @@
+package com.thoughtcomplex.starlight.pathfinding;
+
+/**
+ * A* search over a CostMap, with the open set kept in a primitive indexed heap and all per-cell state in reusable flat arrays. Cells
+ * are connected to their four straight neighbours, and optionally to their diagonal ones as well, where that doesn't cut a corner.
+ * Paths found are always the cheapest there are.
+ */
+public class AStarPathfinder implements Pathfinder {
+	private final CostMap<?> map;
+	private final boolean diagonal;
+	private final SearchScratch scratch;
+
+	public AStarPathfinder(CostMap<?> map, boolean diagonal) {
+		this.map = map;
+		this.diagonal = diagonal;
+		this.scratch = new SearchScratch(map.width*map.height);
+	}
+
+	/** Returns a Factory for BatchPathfinder which creates A* searches over the map. */
+	public static Pathfinder.Factory factory(final CostMap<?> map, final boolean diagonal) {
+		return new Pathfinder.Factory() {
+			@Override
+			public Pathfinder create() {
+				return new AStarPathfinder(map, diagonal);
+			}
+		};
+	}
+
+	@Override
+	public Path findPath(int startX, int startY, int goalX, int goalY) {
+		if (!map.isPassable(startX, startY) || !map.isPassable(goalX, goalY)) return null;
+		int width = map.width;
+		float[] costs = map.costs;
+		int goal = goalY*width+goalX;
+		int directions = (diagonal) ? 8 : 4;
+
+		scratch.begin();
+		scratch.reach(startY*width+startX, 0f, -1, map.estimate(startX, startY, goalX, goalY, diagonal));
+		while(!scratch.open.isEmpty()) {
+			int node = scratch.open.poll();
+			if (node==goal) return scratch.buildPath(goal, width);
+			scratch.close(node);
+			int x = node%width;
+			int y = node/width;
+			float costToNode = scratch.costTo[node];
+			for(int d=0; d<directions; d++) {
+				if (!map.canStep(x, y, d)) continue;
+				int nextX = x+CostMap.STEP_X[d];
+				int nextY = y+CostMap.STEP_Y[d];
+				int next = nextY*width+nextX;
+				if (scratch.isClosed(next)) continue;
+				float cost = costToNode+((d<4) ? costs[next] : costs[next]*CostMap.SQRT_2);
+				if (scratch.isSeen(next) && cost>=scratch.costTo[next]) continue;
+				scratch.reach(next, cost, node, cost+map.estimate(nextX, nextY, goalX, goalY, diagonal));
+			}
+		}
+		return null;
+	}
+}
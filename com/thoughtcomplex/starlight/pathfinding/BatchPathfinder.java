@@ -0,0 +1,73 @@
+package com.thoughtcomplex.starlight.pathfinding;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs many path searches at once on a pool of worker threads, such as every agent that wants a new path this frame. Each worker
+ * thread gets its own Pathfinder from the factory the first time it takes part, and keeps it for every batch after that, so the
+ * scratch space is only ever allocated once per thread.
+ *
+ * <p>The searches only read the CostMap, so it mustn't be refreshed while a batch is running.
+ */
+public class BatchPathfinder {
+	/** How many searches each task runs, so that short searches aren't swamped by the cost of handing them out. */
+	private static final int SEARCHES_PER_TASK = 8;
+
+	private final Executor executor;
+	private final ThreadLocal<Pathfinder> pathfinders;
+
+	/**
+	 * @param factory		Creates the Pathfinder for each thread, such as AStarPathfinder.factory(map, true)
+	 * @param executor		Runs the searches; for instance a ForkJoinPool, or a fixed thread pool
+	 */
+	public BatchPathfinder(final Pathfinder.Factory factory, Executor executor) {
+		this.executor = executor;
+		this.pathfinders = new ThreadLocal<Pathfinder>() {
+			@Override
+			protected Pathfinder initialValue() {
+				return factory.create();
+			}
+		};
+	}
+
+	/**
+	 * Finds a path for each query, where query i goes from startXs[i],startYs[i] to goalXs[i],goalYs[i], and waits for them all.
+	 * @return						The paths, in the same order as the queries, with null where no path exists
+	 * @throws InterruptedException	Thrown if the calling thread is interrupted while waiting. Searches already handed out carry on.
+	 * @throws RuntimeException		Whatever a search threw, if one failed. Errors are thrown on as they are, and anything else
+	 * 								is wrapped in a RuntimeException.
+	 */
+	public Path[] findPaths(final int[] startXs, final int[] startYs, final int[] goalXs, final int[] goalYs) throws InterruptedException {
+		final int count = startXs.length;
+		if (startYs.length!=count | goalXs.length!=count | goalYs.length!=count) throw new IllegalArgumentException("Query arrays must all be the same length.");
+		final Path[] results = new Path[count];
+		int tasks = (count+SEARCHES_PER_TASK-1)/SEARCHES_PER_TASK;
+		final CountDownLatch done = new CountDownLatch(tasks);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for(int task=0; task<tasks; task++) {
+			final int from = task*SEARCHES_PER_TASK;
+			final int to = Math.min(from+SEARCHES_PER_TASK, count);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Pathfinder pathfinder = pathfinders.get();
+						for(int i=from; i<to; i++) results[i] = pathfinder.findPath(startXs[i], startYs[i], goalXs[i], goalYs[i]);
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		Throwable failed = failure.get();
+		if (failed instanceof RuntimeException) throw (RuntimeException)failed;
+		if (failed instanceof Error) throw (Error)failed;
+		if (failed!=null) throw new RuntimeException(failed);
+		return results;
+	}
+}
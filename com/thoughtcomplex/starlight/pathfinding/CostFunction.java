@@ -0,0 +1,13 @@
+package com.thoughtcomplex.starlight.pathfinding;
+
+/**
+ * Says how expensive it is to step onto a cell of a grid, for building a CostMap. Moving diagonally onto a cell costs the square root
+ * of two times as much as moving straight onto it.
+ */
+public interface CostFunction<E> {
+	/**
+	 * Returns the cost of stepping onto cell x,y, which holds value. Any cost which isn't zero or positive and finite, such as
+	 * Float.POSITIVE_INFINITY, means the cell can't be walked on at all.
+	 */
+	public float getCost(E value, int x, int y);
+}
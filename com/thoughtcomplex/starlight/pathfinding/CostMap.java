@@ -0,0 +1,111 @@
+package com.thoughtcomplex.starlight.pathfinding;
+
+import java.util.Arrays;
+
+import com.thoughtcomplex.starlight.util.Collection2D;
+
+/**
+ * The cost of stepping onto each cell of a grid, worked out once through a CostFunction and kept in a flat float array, so that
+ * searches never box, call back into user code, or look anything up in the grid itself. The map covers the grid as it was when the
+ * map was made; when cells change, refresh the rectangle they're in (a DirtyRegionTracker's regions can be passed straight on).
+ *
+ * <p>Any number of Pathfinders and FlowFields can read one CostMap at once, as long as nothing refreshes it at the same time.
+ */
+public class CostMap<E> {
+	static final float SQRT_2 = (float)Math.sqrt(2);
+	/** Steps to the eight neighbours of a cell: the four straight ones first, then the four diagonals. */
+	static final int[] STEP_X = { 1, 0, -1, 0, 1, -1, -1, 1 };
+	static final int[] STEP_Y = { 0, 1, 0, -1, 1, 1, -1, -1 };
+
+	private final Collection2D<E> grid;
+	private final CostFunction<? super E> function;
+	final int width;
+	final int height;
+	/** The cost of each cell, as y*width+x, with impassable cells holding positive infinity. */
+	final float[] costs;
+	/** The smallest cost of any passable cell, which scales the search heuristics. */
+	float minimumCost = Float.POSITIVE_INFINITY;
+
+	public CostMap(Collection2D<E> grid, CostFunction<? super E> function) {
+		this.grid = grid;
+		this.function = function;
+		this.width = grid.getWidth();
+		this.height = grid.getHeight();
+		if ((long)width*height>Integer.MAX_VALUE-8) throw new IllegalArgumentException("Grid is too large: "+width+" x "+height);
+		this.costs = new float[width*height];
+		refresh();
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** Works out the cost of every cell again. */
+	public void refresh() {
+		minimumCost = Float.POSITIVE_INFINITY;
+		refresh(0, 0, width, height);
+	}
+
+	/**
+	 * Works out the cost of every cell in the rectangle with its top left corner at x,y again. Any part of the rectangle outside
+	 * the map is ignored. Cells which a sparse grid doesn't visit, such as those in ChunkedGrid chunks which aren't loaded, are
+	 * impassable.
+	 */
+	public void refresh(int x, int y, int width, int height) {
+		int minX = Math.max(x, 0);
+		int maxX = (int)Math.min((long)x+width, this.width);
+		int maxY = (int)Math.min((long)y+height, this.height);
+		if (minX<maxX) {
+			for(int row=Math.max(y, 0); row<maxY; row++) Arrays.fill(costs, row*this.width+minX, row*this.width+maxX, Float.POSITIVE_INFINITY);
+		}
+		grid.forEachIn(x, y, width, height, new Collection2D.CellVisitor<E>() {
+			@Override
+			public void visit(int cellX, int cellY, E value) {
+				if (cellX>=CostMap.this.width | cellY>=CostMap.this.height) return;
+				float cost = function.getCost(value, cellX, cellY);
+				if (!(cost>=0f) | cost==Float.POSITIVE_INFINITY) cost = Float.POSITIVE_INFINITY; //also catches NaN
+				costs[cellY*CostMap.this.width+cellX] = cost;
+				if (cost<minimumCost) minimumCost = cost;
+			}
+		});
+	}
+
+	/** Returns the cost of stepping onto cell x,y, or positive infinity if it's impassable or outside the map. */
+	public float getCost(int x, int y) {
+		if (x<0 | y<0 | x>=width | y>=height) return Float.POSITIVE_INFINITY;
+		return costs[y*width+x];
+	}
+
+	public boolean isPassable(int x, int y) {
+		return x>=0 & y>=0 & x<width & y<height && costs[y*width+x]!=Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Returns true if one step in direction d, an index into STEP_X and STEP_Y, leads from cell x,y onto a passable cell. Diagonal
+	 * steps also need both of the cells beside them to be passable, so that paths never cut corners.
+	 */
+	final boolean canStep(int x, int y, int d) {
+		int dx = STEP_X[d];
+		int dy = STEP_Y[d];
+		if (!isPassable(x+dx, y+dy)) return false;
+		return d<4 || (isPassable(x+dx, y) && isPassable(x, y+dy));
+	}
+
+	/** Returns a lower bound on the cost of getting between two cells, for the searches to aim by. */
+	final float estimate(int x, int y, int goalX, int goalY, boolean diagonal) {
+		float scale = (minimumCost==Float.POSITIVE_INFINITY) ? 0f : minimumCost;
+		int dx = Math.abs(goalX-x);
+		int dy = Math.abs(goalY-y);
+		if (!diagonal) return scale*(dx+dy);
+		return scale*octile(dx, dy);
+	}
+
+	/** Returns the length of the shortest eight-way path across dx columns and dy rows. */
+	static float octile(int dx, int dy) {
+		return (dx>dy) ? dx+(SQRT_2-1f)*dy : dy+(SQRT_2-1f)*dx;
+	}
+}
@@ -0,0 +1,113 @@
+package com.thoughtcomplex.starlight.pathfinding;
+
+import java.util.Arrays;
+
+/**
+ * The cheapest way to a single goal from every cell of a CostMap at once, for when many agents are headed to the same place. One
+ * Dijkstra search outward from the goal costs about as much as a single long A* search, and afterwards each agent finds its next
+ * step with one array lookup, however many agents there are.
+ *
+ * <p>Once computed, a field can be read from any number of threads, as long as it isn't being computed again at the same time.
+ */
+public class FlowField {
+	private static final byte NO_STEP = -1;
+
+	private final CostMap<?> map;
+	private final boolean diagonal;
+	/** The cost of getting from each cell to the goal, or positive infinity if it can't be reached. */
+	private final float[] distances;
+	/** The direction of each cell's first step towards the goal, as an index into the CostMap steps, or NO_STEP. */
+	private final byte[] steps;
+	private final NodeHeap open;
+	private int goalX = -1;
+	private int goalY = -1;
+
+	public FlowField(CostMap<?> map, boolean diagonal) {
+		this.map = map;
+		this.diagonal = diagonal;
+		int cells = map.width*map.height;
+		this.distances = new float[cells];
+		this.steps = new byte[cells];
+		this.open = new NodeHeap(cells);
+		Arrays.fill(distances, Float.POSITIVE_INFINITY);
+		Arrays.fill(steps, NO_STEP);
+	}
+
+	/**
+	 * Works out the field towards a goal, replacing whatever was there before. If the goal is impassable or outside the map,
+	 * nothing can reach it.
+	 */
+	public void compute(int goalX, int goalY) {
+		this.goalX = goalX;
+		this.goalY = goalY;
+		Arrays.fill(distances, Float.POSITIVE_INFINITY);
+		Arrays.fill(steps, NO_STEP);
+		if (!map.isPassable(goalX, goalY)) return;
+
+		int width = map.width;
+		float[] costs = map.costs;
+		int directions = (diagonal) ? 8 : 4;
+		int goal = goalY*width+goalX;
+		distances[goal] = 0f;
+		open.clear();
+		open.offer(goal, 0f);
+		while(!open.isEmpty()) {
+			//Cells are settled in order of distance, so the first time a cell comes out of the heap, its distance is final.
+			int node = open.poll();
+			int x = node%width;
+			int y = node/width;
+			float distance = distances[node];
+			for(int d=0; d<directions; d++) {
+				//Stepping back from node to a neighbour means the neighbour steps forward onto node, paying node's cost.
+				if (!map.canStep(x, y, d)) continue;
+				int neighbour = (y+CostMap.STEP_Y[d])*width+x+CostMap.STEP_X[d];
+				float through = distance+((d<4) ? costs[node] : costs[node]*CostMap.SQRT_2);
+				if (through>=distances[neighbour]) continue;
+				distances[neighbour] = through;
+				steps[neighbour] = (byte)opposite(d);
+				open.offer(neighbour, through);
+			}
+		}
+	}
+
+	/** Returns the direction pointing back the other way along direction d. */
+	private static int opposite(int d) {
+		return (d<4) ? (d+2)&3 : 4+((d-4+2)&3);
+	}
+
+	public int getGoalX() {
+		return goalX;
+	}
+
+	public int getGoalY() {
+		return goalY;
+	}
+
+	/** Returns true if the goal can be reached from cell x,y. The goal can reach itself. */
+	public boolean isReachable(int x, int y) {
+		return getDistance(x, y)!=Float.POSITIVE_INFINITY;
+	}
+
+	/** Returns the cost of the cheapest path from cell x,y to the goal, or positive infinity if there isn't one. */
+	public float getDistance(int x, int y) {
+		if (x<0 | y<0 | x>=map.width | y>=map.height) return Float.POSITIVE_INFINITY;
+		return distances[y*map.width+x];
+	}
+
+	/** Returns -1, 0 or 1: which way the first step from cell x,y towards the goal goes across. 0 at the goal, or if it's unreachable. */
+	public int getStepX(int x, int y) {
+		int step = stepAt(x, y);
+		return (step==NO_STEP) ? 0 : CostMap.STEP_X[step];
+	}
+
+	/** Returns -1, 0 or 1: which way the first step from cell x,y towards the goal goes down. 0 at the goal, or if it's unreachable. */
+	public int getStepY(int x, int y) {
+		int step = stepAt(x, y);
+		return (step==NO_STEP) ? 0 : CostMap.STEP_Y[step];
+	}
+
+	private int stepAt(int x, int y) {
+		if (x<0 | y<0 | x>=map.width | y>=map.height) return NO_STEP;
+		return steps[y*map.width+x];
+	}
+}
@@ -0,0 +1,156 @@
+package com.thoughtcomplex.starlight.pathfinding;
+
+/**
+ * Jump Point Search: A* for grids where every passable cell costs the same, which skips over the long stretches of open ground that
+ * plain A* would put through the open set one cell at a time. From each cell it only looks in the directions an optimal path could
+ * carry on in, and runs along each one until something interesting, a jump point, turns up; only jump points go into the open set.
+ * On open maps this expands a tiny fraction of the cells A* does.
+ *
+ * <p>Movement is eight-way without cutting corners, like a diagonal AStarPathfinder. Costs are ignored apart from whether a cell is
+ * passable, so the paths are the shortest ones, not the cheapest ones, and their cost is their length, counting diagonal steps as
+ * the square root of two. The path returned still lists every cell along the way, not just the jump points.
+ */
+public class JumpPointPathfinder implements Pathfinder {
+	private final CostMap<?> map;
+	private final SearchScratch scratch;
+	private int goalX;
+	private int goalY;
+
+	public JumpPointPathfinder(CostMap<?> map) {
+		this.map = map;
+		this.scratch = new SearchScratch(map.width*map.height);
+	}
+
+	/** Returns a Factory for BatchPathfinder which creates jump point searches over the map. */
+	public static Pathfinder.Factory factory(final CostMap<?> map) {
+		return new Pathfinder.Factory() {
+			@Override
+			public Pathfinder create() {
+				return new JumpPointPathfinder(map);
+			}
+		};
+	}
+
+	@Override
+	public Path findPath(int startX, int startY, int goalX, int goalY) {
+		if (!map.isPassable(startX, startY) || !map.isPassable(goalX, goalY)) return null;
+		this.goalX = goalX;
+		this.goalY = goalY;
+		int width = map.width;
+		int goal = goalY*width+goalX;
+
+		scratch.begin();
+		scratch.reach(startY*width+startX, 0f, -1, CostMap.octile(Math.abs(goalX-startX), Math.abs(goalY-startY)));
+		while(!scratch.open.isEmpty()) {
+			int node = scratch.open.poll();
+			if (node==goal) return expand(goal);
+			scratch.close(node);
+			int x = node%width;
+			int y = node/width;
+			int from = scratch.parent[node];
+			if (from==-1) {
+				for(int d=0; d<8; d++) {
+					if (map.canStep(x, y, d)) jumpFrom(node, x, y, CostMap.STEP_X[d], CostMap.STEP_Y[d]);
+				}
+			} else {
+				int dx = Integer.signum(x-from%width);
+				int dy = Integer.signum(y-from/width);
+				searchNeighbours(node, x, y, dx, dy);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Jumps from a cell in only the directions worth trying, having arrived there heading dx,dy: onward, plus any turn which an
+	 * obstacle beside the path might have made the best way round.
+	 */
+	private void searchNeighbours(int node, int x, int y, int dx, int dy) {
+		if (dx!=0 && dy!=0) {
+			boolean alongX = map.isPassable(x+dx, y);
+			boolean alongY = map.isPassable(x, y+dy);
+			if (alongY) jumpFrom(node, x, y, 0, dy);
+			if (alongX) jumpFrom(node, x, y, dx, 0);
+			if (alongX && alongY) jumpFrom(node, x, y, dx, dy);
+		} else if (dx!=0) {
+			boolean ahead = map.isPassable(x+dx, y);
+			boolean below = map.isPassable(x, y+1);
+			boolean above = map.isPassable(x, y-1);
+			if (ahead) {
+				jumpFrom(node, x, y, dx, 0);
+				if (below) jumpFrom(node, x, y, dx, 1);
+				if (above) jumpFrom(node, x, y, dx, -1);
+			}
+			if (below) jumpFrom(node, x, y, 0, 1);
+			if (above) jumpFrom(node, x, y, 0, -1);
+		} else {
+			boolean ahead = map.isPassable(x, y+dy);
+			boolean right = map.isPassable(x+1, y);
+			boolean left = map.isPassable(x-1, y);
+			if (ahead) {
+				jumpFrom(node, x, y, 0, dy);
+				if (right) jumpFrom(node, x, y, 1, dy);
+				if (left) jumpFrom(node, x, y, -1, dy);
+			}
+			if (right) jumpFrom(node, x, y, 1, 0);
+			if (left) jumpFrom(node, x, y, -1, 0);
+		}
+	}
+
+	/** Jumps from cell x,y heading dx,dy, and puts any jump point found into the open set. */
+	private void jumpFrom(int node, int x, int y, int dx, int dy) {
+		int found = jump(x+dx, y+dy, dx, dy);
+		if (found==-1 || scratch.isClosed(found)) return;
+		int width = map.width;
+		int foundX = found%width;
+		int foundY = found/width;
+		float cost = scratch.costTo[node]+CostMap.octile(Math.abs(foundX-x), Math.abs(foundY-y));
+		if (scratch.isSeen(found) && cost>=scratch.costTo[found]) return;
+		scratch.reach(found, cost, node, cost+CostMap.octile(Math.abs(goalX-foundX), Math.abs(goalY-foundY)));
+	}
+
+	/**
+	 * Runs from cell x,y in direction dx,dy until reaching the goal, a cell with a forced neighbour, or, going diagonally, a cell
+	 * from which a straight run finds one. Returns that cell, or -1 if the run hits something first.
+	 */
+	private int jump(int x, int y, int dx, int dy) {
+		while(true) {
+			if (!map.isPassable(x, y)) return -1;
+			if (x==goalX && y==goalY) return y*map.width+x;
+			if (dx!=0 && dy!=0) {
+				if (jump(x+dx, y, dx, 0)!=-1 || jump(x, y+dy, 0, dy)!=-1) return y*map.width+x;
+				if (!map.isPassable(x+dx, y) || !map.isPassable(x, y+dy)) return -1;
+			} else if (dx!=0) {
+				if ((map.isPassable(x, y-1) && !map.isPassable(x-dx, y-1)) || (map.isPassable(x, y+1) && !map.isPassable(x-dx, y+1))) {
+					return y*map.width+x;
+				}
+			} else {
+				if ((map.isPassable(x-1, y) && !map.isPassable(x-1, y-dy)) || (map.isPassable(x+1, y) && !map.isPassable(x+1, y-dy))) {
+					return y*map.width+x;
+				}
+			}
+			x += dx;
+			y += dy;
+		}
+	}
+
+	/** Builds the path to the goal, filling in the cells between each pair of jump points, which always lie in a straight line. */
+	private Path expand(int goal) {
+		int width = map.width;
+		int length = 1;
+		for(int node=goal; scratch.parent[node]!=-1; node=scratch.parent[node]) {
+			int from = scratch.parent[node];
+			length += Math.max(Math.abs(node%width-from%width), Math.abs(node/width-from/width));
+		}
+		int[] cells = new int[length];
+		int i = length;
+		int node = goal;
+		for(; scratch.parent[node]!=-1; node=scratch.parent[node]) {
+			int from = scratch.parent[node];
+			int step = Integer.signum(from/width-node/width)*width+Integer.signum(from%width-node%width);
+			for(int cell=node; cell!=from; cell+=step) cells[--i] = cell;
+		}
+		cells[0] = node; //the start
+		return new Path(width, cells, scratch.costTo[goal]);
+	}
+}
@@ -0,0 +1,81 @@
+package com.thoughtcomplex.starlight.pathfinding;
+
+/**
+ * A binary min-heap of cell indices keyed by float priorities, with each cell's position in the heap tracked in a flat array so that
+ * a cell's priority can be lowered in place instead of being added again. Emptying the heap is constant time: a cell only counts as
+ * being in the heap if the slot its position points at is inside the heap and holds that cell, so stale positions left over from an
+ * earlier search don't matter.
+ */
+final class NodeHeap {
+	private final int[] nodes;
+	private final float[] priorities;
+	/** Where each cell is in the heap, if it is in the heap at all. */
+	private final int[] slotOf;
+	private int size = 0;
+
+	NodeHeap(int nodeCount) {
+		nodes = new int[nodeCount];
+		priorities = new float[nodeCount];
+		slotOf = new int[nodeCount];
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	boolean isEmpty() {
+		return size==0;
+	}
+
+	boolean contains(int node) {
+		int slot = slotOf[node];
+		return slot<size && nodes[slot]==node;
+	}
+
+	/** Adds a cell, or lowers its priority if it's already in the heap with a higher one. */
+	void offer(int node, float priority) {
+		if (contains(node)) {
+			int slot = slotOf[node];
+			if (priority>=priorities[slot]) return;
+			siftUp(slot, node, priority);
+			return;
+		}
+		siftUp(size++, node, priority);
+	}
+
+	/** Removes and returns the cell with the lowest priority. */
+	int poll() {
+		int result = nodes[0];
+		size--;
+		if (size>0) siftDown(0, nodes[size], priorities[size]);
+		return result;
+	}
+
+	private void siftUp(int slot, int node, float priority) {
+		while(slot>0) {
+			int parent = (slot-1) >>> 1;
+			if (priorities[parent]<=priority) break;
+			place(slot, nodes[parent], priorities[parent]);
+			slot = parent;
+		}
+		place(slot, node, priority);
+	}
+
+	private void siftDown(int slot, int node, float priority) {
+		int half = size >>> 1;
+		while(slot<half) {
+			int child = 2*slot+1;
+			if (child+1<size && priorities[child+1]<priorities[child]) child++;
+			if (priority<=priorities[child]) break;
+			place(slot, nodes[child], priorities[child]);
+			slot = child;
+		}
+		place(slot, node, priority);
+	}
+
+	private void place(int slot, int node, float priority) {
+		nodes[slot] = node;
+		priorities[slot] = priority;
+		slotOf[node] = slot;
+	}
+}
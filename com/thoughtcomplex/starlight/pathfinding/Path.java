@@ -0,0 +1,35 @@
+package com.thoughtcomplex.starlight.pathfinding;
+
+/**
+ * A path found by a Pathfinder: every cell from the start to the goal, in order, each one a single step from the one before.
+ */
+public final class Path {
+	private final int width;
+	/** The cells, as y*width+x. */
+	private final int[] cells;
+	private final float cost;
+
+	Path(int width, int[] cells, float cost) {
+		this.width = width;
+		this.cells = cells;
+		this.cost = cost;
+	}
+
+	/** Returns the number of cells on the path, counting both the start and the goal. */
+	public int length() {
+		return cells.length;
+	}
+
+	public int getX(int step) {
+		return cells[step]%width;
+	}
+
+	public int getY(int step) {
+		return cells[step]/width;
+	}
+
+	/** Returns the total cost of walking the path, not counting the start cell. */
+	public float getCost() {
+		return cost;
+	}
+}
@@ -0,0 +1,19 @@
+package com.thoughtcomplex.starlight.pathfinding;
+
+/**
+ * Finds paths across a CostMap. A Pathfinder keeps scratch space sized to the map and reuses it for every search, so searching
+ * allocates nothing but the Path it returns; but that also means a Pathfinder can only run one search at a time. Give each thread its
+ * own, or use a BatchPathfinder, which does.
+ */
+public interface Pathfinder {
+	/**
+	 * Finds a cheapest path from the start cell to the goal cell.
+	 * @return			The path, including both the start and the goal, or null if either is impassable or they aren't connected.
+	 */
+	public Path findPath(int startX, int startY, int goalX, int goalY);
+
+	/** Creates Pathfinders, for a BatchPathfinder to give one to each of its worker threads. */
+	public interface Factory {
+		public Pathfinder create();
+	}
+}
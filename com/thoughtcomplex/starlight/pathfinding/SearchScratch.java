@@ -0,0 +1,68 @@
+package com.thoughtcomplex.starlight.pathfinding;
+
+import java.util.Arrays;
+
+/**
+ * The per-cell working state of a best-first search, kept between searches. Rather than clearing it all before each search, every
+ * search gets a new generation number, and a cell's state only counts if it was stamped with the current one; so starting a search
+ * costs nothing however big the map is.
+ */
+final class SearchScratch {
+	/** The cheapest known cost of reaching each cell. */
+	final float[] costTo;
+	/** The cell each cell was best reached from, or -1 for the start. */
+	final int[] parent;
+	final NodeHeap open;
+	private final int[] seen;
+	private final int[] closed;
+	private int generation = 0;
+
+	SearchScratch(int nodeCount) {
+		costTo = new float[nodeCount];
+		parent = new int[nodeCount];
+		open = new NodeHeap(nodeCount);
+		seen = new int[nodeCount];
+		closed = new int[nodeCount];
+	}
+
+	/** Forgets everything from the last search. */
+	void begin() {
+		generation++;
+		if (generation==Integer.MAX_VALUE) {
+			//Stamps from two billion searches ago would start to look current, so wipe them, once in a very long while.
+			Arrays.fill(seen, 0);
+			Arrays.fill(closed, 0);
+			generation = 1;
+		}
+		open.clear();
+	}
+
+	boolean isSeen(int node) {
+		return seen[node]==generation;
+	}
+
+	boolean isClosed(int node) {
+		return closed[node]==generation;
+	}
+
+	void close(int node) {
+		closed[node] = generation;
+	}
+
+	/** Records a cheaper way to reach a cell, and queues it to be expanded. */
+	void reach(int node, float cost, int from, float priority) {
+		costTo[node] = cost;
+		parent[node] = from;
+		seen[node] = generation;
+		open.offer(node, priority);
+	}
+
+	/** Follows the parents back from the goal to build the path to it. */
+	Path buildPath(int goal, int width) {
+		int length = 0;
+		for(int node=goal; node!=-1; node=parent[node]) length++;
+		int[] cells = new int[length];
+		for(int node=goal; node!=-1; node=parent[node]) cells[--length] = node;
+		return new Path(width, cells, costTo[goal]);
+	}
+}
@@ -0,0 +1,92 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.util.Collection;
+
+/**
+ * The parts of a fixed-size grid which don't depend on what its cells hold. Subclasses keep their cells in a single flat array,
+ * row after row, so cell x,y is at index y*width+x.
+ */
+public abstract class AbstractGrid<E> implements Collection2D<E> {
+	protected final int width;
+	protected final int height;
+
+	protected AbstractGrid(int width, int height) {
+		if (width<0 | height<0) throw new IllegalArgumentException("Grid dimensions can't be negative.");
+		if ((long)width*height>Integer.MAX_VALUE-8) throw new IllegalArgumentException("Grid is too large: "+width+" x "+height);
+		this.width = width;
+		this.height = height;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	/** Returns the index of cell x,y in the backing array, or throws IndexOutOfBoundsException if it's outside the grid. */
+	protected final int indexOf(int x, int y) {
+		if (x<0 | y<0 | x>=width | y>=height) throw new IndexOutOfBoundsException("Cell "+x+","+y+" is outside the "+width+" x "+height+" grid.");
+		return y*width+x;
+	}
+
+	/** Throws IndexOutOfBoundsException unless cells x through x+length-1 of row y are all inside the grid. */
+	protected final void checkRow(int x, int y, int length) {
+		if (x<0 | y<0 | length<0 | y>=height | x+length>width) {
+			throw new IndexOutOfBoundsException("Cells "+x+" to "+(x+length-1)+" of row "+y+" are outside the "+width+" x "+height+" grid.");
+		}
+	}
+
+	/**
+	 * A grid always has all of its cells; it's empty only if it has no room for any.
+	 */
+	@Override
+	public boolean isEmpty() {
+		return width==0 | height==0;
+	}
+
+	/**
+	 * Visits cells as their boxed values. The primitive grids also have forEachIntIn or forEachFloatIn, which take a primitive
+	 * visitor and never box.
+	 */
+	@Override
+	public void forEachIn(int x, int y, int width, int height, CellVisitor<? super E> visitor) {
+		int minX = Math.max(x, 0);
+		int maxX = (int)Math.min((long)x+width, this.width);
+		int maxY = (int)Math.min((long)y+height, this.height);
+		for(int row=Math.max(y, 0); row<maxY; row++) {
+			for(int column=minX; column<maxX; column++) visitor.visit(column, row, get(column, row));
+		}
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		for(Object o : c) {
+			if (!contains(o)) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean containsAll(Collection2D<?> c) {
+		for(int y=0; y<c.getHeight(); y++) {
+			for(int x=0; x<c.getWidth(); x++) {
+				if (!contains(c.get(x, y))) return false;
+			}
+		}
+		return true;
+	}
+
+	/** Receives cells from the forEachIntIn of an IntGrid, ShortGrid or ByteGrid. */
+	public interface IntCellVisitor {
+		public void visit(int x, int y, int value);
+	}
+
+	/** Receives cells from the forEachFloatIn of a FloatGrid. */
+	public interface FloatCellVisitor {
+		public void visit(int x, int y, float value);
+	}
+}
@@ -0,0 +1,154 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream in independent chunks. Anything can be written through it, but it's meant to sit underneath Streamable
+ * output, where grids and tables full of repeated values shrink enormously.
+ *
+ * <p>The data is cut into chunks of a fixed uncompressed size, and every chunk is deflated from scratch, with no history shared
+ * between chunks. Each goes out in a frame with its sizes and a checksum up front. That means a reader never needs more than one
+ * chunk in memory at a time, and a reader with all of the data in hand can inflate every chunk at once on separate threads (see
+ * ChunkedInflaterInputStream.inflateAll). Chunks which don't shrink are stored as-is.
+ *
+ * <p>The format is: three magic bytes ('S', 'L', 'Z'), a version byte, and an int holding the chunk size. Then any number of
+ * frames, each holding an int uncompressed length, an int stored length, an int CRC32 of the uncompressed data, and the stored
+ * bytes. If the stored length equals the uncompressed length, the chunk was stored without compression. A frame with an
+ * uncompressed length of zero marks the end of the stream. All ints are big-endian.
+ */
+public class ChunkedDeflaterOutputStream extends OutputStream {
+	static final int MAGIC_0 = 'S';
+	static final int MAGIC_1 = 'L';
+	static final int MAGIC_2 = 'Z';
+	static final int FORMAT_VERSION = 1;
+	/** Readers refuse chunks any larger than this, so a corrupt header can't make them allocate huge buffers. */
+	static final int MAX_CHUNK_SIZE = 1 << 24;
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+	private final OutputStream out;
+	private final Deflater deflater;
+	private final CRC32 crc = new CRC32();
+	private final byte[] chunk;
+	private final byte[] compressed;
+	private final byte[] frameHeader = new byte[12];
+	private int chunkLength = 0;
+	private boolean finished = false;
+
+	public ChunkedDeflaterOutputStream(OutputStream out) throws IOException {
+		this(out, DEFAULT_CHUNK_SIZE, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param out			The stream to write compressed data to
+	 * @param chunkSize		The uncompressed size of each chunk. Larger chunks compress better; smaller ones use less memory and
+	 * 						give parallel readers more pieces to share out.
+	 * @param level			The Deflater compression level, from 0 to 9
+	 */
+	public ChunkedDeflaterOutputStream(OutputStream out, int chunkSize, int level) throws IOException {
+		if (out==null) throw new IllegalArgumentException("Cannot write to a null stream.");
+		if (chunkSize<=0 | chunkSize>MAX_CHUNK_SIZE) throw new IllegalArgumentException("Chunk size must be between 1 and "+MAX_CHUNK_SIZE);
+		this.out = out;
+		this.chunk = new byte[chunkSize];
+		this.compressed = new byte[chunkSize];
+
+		byte[] header = { (byte)MAGIC_0, (byte)MAGIC_1, (byte)MAGIC_2, (byte)FORMAT_VERSION,
+				(byte)(chunkSize >> 24), (byte)(chunkSize >> 16), (byte)(chunkSize >> 8), (byte)chunkSize };
+		out.write(header);
+		this.deflater = new Deflater(level, true); //only once nothing else can fail, since its native memory needs ending
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (finished) throw new IOException("Stream is already finished.");
+		chunk[chunkLength++] = (byte)b;
+		if (chunkLength==chunk.length) writeChunk();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (finished) throw new IOException("Stream is already finished.");
+		while(len>0) {
+			int count = Math.min(len, chunk.length-chunkLength);
+			System.arraycopy(b, off, chunk, chunkLength, count);
+			chunkLength += count;
+			off += count;
+			len -= count;
+			if (chunkLength==chunk.length) writeChunk();
+		}
+	}
+
+	/**
+	 * Ends the current chunk early and flushes it through. Flushing often makes for small chunks and poor compression, so
+	 * StreamableOutputStream and friends should be flushed into this only when the data really needs to go out.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (chunkLength>0) writeChunk();
+		out.flush();
+	}
+
+	/**
+	 * Writes out any partial chunk and the end-of-stream frame, without closing the underlying stream. The Deflater is released
+	 * even if this fails, after which nothing more can be written.
+	 */
+	public void finish() throws IOException {
+		if (finished) return;
+		try {
+			if (chunkLength>0) writeChunk();
+			writeFrameHeader(0, 0, 0);
+		} finally {
+			finished = true;
+			deflater.end();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+			out.flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeChunk() throws IOException {
+		crc.reset();
+		crc.update(chunk, 0, chunkLength);
+
+		deflater.reset();
+		deflater.setInput(chunk, 0, chunkLength);
+		deflater.finish();
+		int compressedLength = 0;
+		//Stop as soon as it's clear the chunk won't get any smaller.
+		while(!deflater.finished() && compressedLength<chunkLength) {
+			compressedLength += deflater.deflate(compressed, compressedLength, compressed.length-compressedLength);
+		}
+
+		if (deflater.finished() && compressedLength<chunkLength) {
+			writeFrameHeader(chunkLength, compressedLength, (int)crc.getValue());
+			out.write(compressed, 0, compressedLength);
+		} else {
+			writeFrameHeader(chunkLength, chunkLength, (int)crc.getValue());
+			out.write(chunk, 0, chunkLength);
+		}
+		chunkLength = 0;
+	}
+
+	private void writeFrameHeader(int rawLength, int storedLength, int checksum) throws IOException {
+		putInt(rawLength, 0);
+		putInt(storedLength, 4);
+		putInt(checksum, 8);
+		out.write(frameHeader);
+	}
+
+	private void putInt(int value, int offset) {
+		frameHeader[offset]   = (byte)(value >> 24);
+		frameHeader[offset+1] = (byte)(value >> 16);
+		frameHeader[offset+2] = (byte)(value >> 8);
+		frameHeader[offset+3] = (byte)value;
+	}
+}
@@ -0,0 +1,423 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.util.Collection;
+
+/**
+ * A sparse grid for very large, mostly empty worlds. The grid is cut into chunks of 32x32 cells, and only chunks with something in
+ * them take up any memory, so memory grows with the area actually occupied rather than with the size of the world. Cells which
+ * were never set read as null.
+ *
+ * <p>Chunks are found through a hash map keyed on their packed chunk coordinates, and the most recently used chunk is remembered,
+ * so runs of nearby reads and writes mostly skip the lookup.
+ *
+ * <p>A ChunkSource can be attached to stream chunks in from storage as they're touched and back out when they're unloaded. Without
+ * one, a chunk disappears as soon as its last cell is set back to null. With one, chunks stay in memory, even empty, until they're
+ * unloaded, so that the source hears about every change.
+ *
+ * <p>forEachChunk and forEachChunkIn visit only the chunks which are in memory, which is how rendering and saving should walk the
+ * grid.
+ */
+public class ChunkedGrid<T> implements Collection2D<T> {
+	public static final int CHUNK_BITS = 5;
+	public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE-1;
+	private static final int CHUNK_AREA = CHUNK_SIZE*CHUNK_SIZE;
+
+	private final LongHashMap<Chunk<T>> chunks = new LongHashMap<Chunk<T>>();
+	private final ChunkSource<T> source;
+	private Chunk<T> lastChunk = null;
+	/** Cells in use across every chunk. */
+	private long count = 0;
+	private int width = 0;
+	private int height = 0;
+
+	/**
+	 * Supplies chunks' contents when they're first touched, and takes them back when they're unloaded.
+	 */
+	public interface ChunkSource<T> {
+		/**
+		 * Fills cells, which is CHUNK_SIZE*CHUNK_SIZE long and row-major, with the stored contents of a chunk. Leave a cell null for
+		 * nothing there.
+		 * @return	true if anything was stored for this chunk, false if it's new
+		 */
+		public boolean load(int chunkX, int chunkY, Object[] cells);
+
+		/**
+		 * Takes back a chunk which is being unloaded. If the chunk is empty, anything stored for it can be forgotten.
+		 */
+		public void unload(Chunk<T> chunk);
+	}
+
+	/**
+	 * Visits chunks in no particular order. Cells shouldn't be set while visiting.
+	 */
+	public interface ChunkVisitor<T> {
+		public void visit(Chunk<T> chunk);
+	}
+
+	/** Creates a grid which keeps everything in memory. */
+	public ChunkedGrid() {
+		this(null);
+	}
+
+	/** Creates a grid which loads and unloads chunks through the given source. */
+	public ChunkedGrid(ChunkSource<T> source) {
+		this.source = source;
+	}
+
+	/**
+	 * One 32x32 piece of the grid. Cells are addressed in the chunk's own coordinates, from 0 to CHUNK_SIZE-1.
+	 */
+	public static final class Chunk<T> {
+		private final int chunkX;
+		private final int chunkY;
+		/** Allocated on the first non-null cell, so a chunk that's only been looked at costs next to nothing. */
+		private Object[] cells = null;
+		private int count = 0;
+
+		private Chunk(int chunkX, int chunkY) {
+			this.chunkX = chunkX;
+			this.chunkY = chunkY;
+		}
+
+		public int getChunkX() {
+			return chunkX;
+		}
+
+		public int getChunkY() {
+			return chunkY;
+		}
+
+		/** Returns the x coordinate in the grid of this chunk's left edge. */
+		public int getOriginX() {
+			return chunkX << CHUNK_BITS;
+		}
+
+		/** Returns the y coordinate in the grid of this chunk's top edge. */
+		public int getOriginY() {
+			return chunkY << CHUNK_BITS;
+		}
+
+		/** Returns how many cells in this chunk aren't null. */
+		public int getCount() {
+			return count;
+		}
+
+		public boolean isEmpty() {
+			return count==0;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T get(int localX, int localY) {
+			if (localX<0 | localY<0 | localX>=CHUNK_SIZE | localY>=CHUNK_SIZE) throw new IndexOutOfBoundsException();
+			if (cells==null) return null;
+			return (T)cells[(localY << CHUNK_BITS) | localX];
+		}
+
+		/** Copies this chunk's cells, row-major, into dest, which must be at least CHUNK_SIZE*CHUNK_SIZE long. */
+		public void copyCells(Object[] dest) {
+			if (cells==null) {
+				for(int i=0; i<CHUNK_AREA; i++) dest[i] = null;
+			} else {
+				System.arraycopy(cells, 0, dest, 0, CHUNK_AREA);
+			}
+		}
+
+		/** Sets one cell, and returns the change in this chunk's count. */
+		private int set(int index, Object value) {
+			if (cells==null) {
+				if (value==null) return 0;
+				cells = new Object[CHUNK_AREA];
+			}
+			Object old = cells[index];
+			cells[index] = value;
+			if (old==null) return (value==null) ? 0 : 1;
+			return (value==null) ? -1 : 0;
+		}
+	}
+
+	@Override
+	public T get(int x, int y) {
+		if (x<0 | y<0) throw new IndexOutOfBoundsException();
+		Chunk<T> chunk = chunkAt(x >> CHUNK_BITS, y >> CHUNK_BITS, false);
+		if (chunk==null || chunk.cells==null) return null;
+		@SuppressWarnings("unchecked")
+		T result = (T)chunk.cells[((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK)];
+		return result;
+	}
+
+	public void set(int x, int y, T value) {
+		if (x<0 | y<0) throw new IndexOutOfBoundsException();
+		Chunk<T> chunk = chunkAt(x >> CHUNK_BITS, y >> CHUNK_BITS, value!=null);
+		if (chunk==null) return; //setting null where there's nothing already
+		int change = chunk.set(((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK), value);
+		chunk.count += change;
+		count += change;
+		if (value!=null) {
+			width = Math.max(width, x+1);
+			height = Math.max(height, y+1);
+		}
+		if (chunk.count==0 && source==null) removeChunk(chunk);
+	}
+
+	@Override
+	public boolean put(T e, int x, int y) {
+		set(x, y, e);
+		return true;
+	}
+
+	/** Returns the chunk holding cell x,y, if it's in memory, without loading anything. */
+	public Chunk<T> getChunkContaining(int x, int y) {
+		if (x<0 | y<0) throw new IndexOutOfBoundsException();
+		return chunks.get(key(x >> CHUNK_BITS, y >> CHUNK_BITS));
+	}
+
+	/** Returns how many chunks are in memory. */
+	public int getChunkCount() {
+		return chunks.size();
+	}
+
+	/** Visits every chunk in memory. */
+	public void forEachChunk(ChunkVisitor<T> visitor) {
+		for(int slot=0; slot<chunks.capacity(); slot++) {
+			Chunk<T> chunk = chunks.valueAt(slot);
+			if (chunk!=null) visitor.visit(chunk);
+		}
+	}
+
+	/**
+	 * Visits every chunk in memory which overlaps the rectangle from minX,minY to maxX,maxY inclusive, such as the part of the world
+	 * on screen. Small rectangles are looked up chunk by chunk; large ones walk the chunks in memory instead.
+	 */
+	public void forEachChunkIn(int minX, int minY, int maxX, int maxY, ChunkVisitor<T> visitor) {
+		int minChunkX = Math.max(minX, 0) >> CHUNK_BITS;
+		int minChunkY = Math.max(minY, 0) >> CHUNK_BITS;
+		int maxChunkX = maxX >> CHUNK_BITS;
+		int maxChunkY = maxY >> CHUNK_BITS;
+		if (maxChunkX<minChunkX | maxChunkY<minChunkY) return;
+		long area = (long)(maxChunkX-minChunkX+1)*(maxChunkY-minChunkY+1);
+		if (area<=chunks.size()) {
+			for(int chunkY=minChunkY; chunkY<=maxChunkY; chunkY++) {
+				for(int chunkX=minChunkX; chunkX<=maxChunkX; chunkX++) {
+					Chunk<T> chunk = chunks.get(key(chunkX, chunkY));
+					if (chunk!=null) visitor.visit(chunk);
+				}
+			}
+		} else {
+			for(int slot=0; slot<chunks.capacity(); slot++) {
+				Chunk<T> chunk = chunks.valueAt(slot);
+				if (chunk==null) continue;
+				if (chunk.chunkX<minChunkX | chunk.chunkX>maxChunkX | chunk.chunkY<minChunkY | chunk.chunkY>maxChunkY) continue;
+				visitor.visit(chunk);
+			}
+		}
+	}
+
+	/**
+	 * Visits every non-null cell of the rectangle with its top left corner at x,y, in the chunks which are in memory. Empty cells,
+	 * and whole chunks which aren't loaded or don't exist, are skipped without being looked at one by one.
+	 */
+	@Override
+	public void forEachIn(int x, int y, int width, int height, CellVisitor<? super T> visitor) {
+		int minX = Math.max(x, 0);
+		int minY = Math.max(y, 0);
+		long maxX = Math.min((long)x+width, this.width)-1; //inclusive
+		long maxY = Math.min((long)y+height, this.height)-1;
+		if (maxX<minX | maxY<minY) return;
+		for(int chunkY=minY >> CHUNK_BITS; chunkY<=(int)maxY >> CHUNK_BITS; chunkY++) {
+			for(int chunkX=minX >> CHUNK_BITS; chunkX<=(int)maxX >> CHUNK_BITS; chunkX++) {
+				Chunk<T> chunk = chunks.get(key(chunkX, chunkY));
+				if (chunk==null || chunk.cells==null) continue;
+				int originX = chunkX << CHUNK_BITS;
+				int originY = chunkY << CHUNK_BITS;
+				int fromX = Math.max(minX, originX);
+				int toX = (int)Math.min(maxX, originX+CHUNK_MASK);
+				int fromY = Math.max(minY, originY);
+				int toY = (int)Math.min(maxY, originY+CHUNK_MASK);
+				for(int cellY=fromY; cellY<=toY; cellY++) {
+					int rowStart = (cellY-originY) << CHUNK_BITS;
+					for(int cellX=fromX; cellX<=toX; cellX++) {
+						Object cell = chunk.cells[rowStart+cellX-originX];
+						if (cell==null) continue;
+						@SuppressWarnings("unchecked")
+						T value = (T)cell;
+						visitor.visit(cellX, cellY, value);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes sure every chunk overlapping the rectangle from minX,minY to maxX,maxY inclusive is in memory, loading any which aren't
+	 * from the source. Does nothing without a source.
+	 */
+	public void load(int minX, int minY, int maxX, int maxY) {
+		if (source==null) return;
+		for(int chunkY=Math.max(minY, 0) >> CHUNK_BITS; chunkY<=maxY >> CHUNK_BITS; chunkY++) {
+			for(int chunkX=Math.max(minX, 0) >> CHUNK_BITS; chunkX<=maxX >> CHUNK_BITS; chunkX++) {
+				chunkAt(chunkX, chunkY, true);
+			}
+		}
+	}
+
+	/**
+	 * Unloads every chunk which doesn't overlap the rectangle from minX,minY to maxX,maxY inclusive, handing each back to the
+	 * source. Useful for keeping just the area around the camera in memory.
+	 */
+	public void unloadOutside(int minX, int minY, int maxX, int maxY) {
+		int minChunkX = minX >> CHUNK_BITS;
+		int minChunkY = minY >> CHUNK_BITS;
+		int maxChunkX = maxX >> CHUNK_BITS;
+		int maxChunkY = maxY >> CHUNK_BITS;
+		//Gather first; removing entries moves others around in the map.
+		long[] toUnload = new long[chunks.size()];
+		int unloadCount = 0;
+		for(int slot=0; slot<chunks.capacity(); slot++) {
+			Chunk<T> chunk = chunks.valueAt(slot);
+			if (chunk==null) continue;
+			if (chunk.chunkX<minChunkX | chunk.chunkX>maxChunkX | chunk.chunkY<minChunkY | chunk.chunkY>maxChunkY) {
+				toUnload[unloadCount++] = chunks.keyAt(slot);
+			}
+		}
+		for(int i=0; i<unloadCount; i++) unload(chunks.get(toUnload[i]));
+	}
+
+	/** Unloads every chunk, handing each back to the source. */
+	public void unloadAll() {
+		unloadOutside(0, 0, -1, -1);
+	}
+
+	/**
+	 * Unloads the chunk holding cell x,y, if it's in memory, and hands it back to the source.
+	 */
+	public void unloadChunkContaining(int x, int y) {
+		Chunk<T> chunk = getChunkContaining(x, y);
+		if (chunk!=null) unload(chunk);
+	}
+
+	/**
+	 * Returns one more than the largest x of any cell ever set to something other than null. Like DataTable, the grid doesn't shrink
+	 * when cells are cleared again.
+	 */
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns one more than the largest y of any cell ever set to something other than null.
+	 */
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Drops every chunk from memory without handing any of them to the source.
+	 */
+	@Override
+	public void clear() {
+		chunks.clear();
+		lastChunk = null;
+		count = 0;
+		width = 0;
+		height = 0;
+	}
+
+	/** Returns how many cells, across every chunk in memory, aren't null. */
+	public long getCount() {
+		return count;
+	}
+
+	/** Looks only at the chunks in memory. */
+	@Override
+	public boolean contains(Object o) {
+		if (o==null) return true; //there's always somewhere empty
+		for(int slot=0; slot<chunks.capacity(); slot++) {
+			Chunk<T> chunk = chunks.valueAt(slot);
+			if (chunk==null || chunk.cells==null) continue;
+			for(Object cell : chunk.cells) {
+				if (o.equals(cell)) return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		for(Object o : c) {
+			if (!contains(o)) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean containsAll(Collection2D<?> c) {
+		for(int y=0; y<c.getHeight(); y++) {
+			for(int x=0; x<c.getWidth(); x++) {
+				if (!contains(c.get(x, y))) return false;
+			}
+		}
+		return true;
+	}
+
+	/** Returns true if no cell in memory holds anything. */
+	@Override
+	public boolean isEmpty() {
+		return count==0;
+	}
+
+	private static long key(int chunkX, int chunkY) {
+		return ((long)chunkX << 32) | (chunkY & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Finds a chunk, loading it from the source if there is one. Without a source, a missing chunk is only created if create is
+	 * true.
+	 */
+	private Chunk<T> chunkAt(int chunkX, int chunkY, boolean create) {
+		Chunk<T> chunk = lastChunk;
+		if (chunk!=null && chunk.chunkX==chunkX && chunk.chunkY==chunkY) return chunk;
+		long key = key(chunkX, chunkY);
+		chunk = chunks.get(key);
+		if (chunk==null) {
+			if (source!=null) {
+				chunk = loadChunk(chunkX, chunkY);
+			} else if (create) {
+				chunk = new Chunk<T>(chunkX, chunkY);
+			} else {
+				return null;
+			}
+			chunks.put(key, chunk);
+		}
+		lastChunk = chunk;
+		return chunk;
+	}
+
+	private Chunk<T> loadChunk(int chunkX, int chunkY) {
+		Chunk<T> chunk = new Chunk<T>(chunkX, chunkY);
+		Object[] cells = new Object[CHUNK_AREA];
+		if (!source.load(chunkX, chunkY, cells)) return chunk;
+		for(int i=0; i<CHUNK_AREA; i++) {
+			if (cells[i]==null) continue;
+			chunk.count++;
+			width = Math.max(width, chunk.getOriginX()+(i & CHUNK_MASK)+1);
+			height = Math.max(height, chunk.getOriginY()+(i >> CHUNK_BITS)+1);
+		}
+		if (chunk.count>0) chunk.cells = cells;
+		count += chunk.count;
+		return chunk;
+	}
+
+	private void unload(Chunk<T> chunk) {
+		removeChunk(chunk);
+		if (source!=null) source.unload(chunk);
+	}
+
+	private void removeChunk(Chunk<T> chunk) {
+		chunks.remove(key(chunk.chunkX, chunk.chunkY));
+		count -= chunk.count;
+		if (lastChunk==chunk) lastChunk = null;
+	}
+}
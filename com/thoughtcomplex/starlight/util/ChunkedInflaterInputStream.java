@@ -0,0 +1,213 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a stream written by ChunkedDeflaterOutputStream, one chunk at a time, so memory use is bounded by the chunk size no matter
+ * how big the stream is. Every chunk's checksum is verified as it's inflated.
+ *
+ * <p>For large data which is going to be read in full anyway, inflateAll reads every frame up front and inflates all of the chunks
+ * in parallel.
+ */
+public class ChunkedInflaterInputStream extends InputStream {
+	private final InputStream in;
+	private final Inflater inflater;
+	private final CRC32 crc = new CRC32();
+	private final byte[] chunk;
+	private byte[] stored;
+	private int chunkPosition = 0;
+	private int chunkLength = 0;
+	private boolean ended = false;
+
+	public ChunkedInflaterInputStream(InputStream in) throws IOException {
+		if (in==null) throw new IllegalArgumentException("Cannot read from a null stream.");
+		this.in = in;
+		this.chunk = new byte[readStreamHeader(in)];
+		this.stored = new byte[Math.min(chunk.length, 8192)];
+		this.inflater = new Inflater(true); //only once the header has been read, so a bad one can't leak its native memory
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (chunkPosition==chunkLength && !nextChunk()) return -1;
+		return chunk[chunkPosition++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len==0) return 0;
+		if (chunkPosition==chunkLength && !nextChunk()) return -1;
+		int count = Math.min(len, chunkLength-chunkPosition);
+		System.arraycopy(chunk, chunkPosition, b, off, count);
+		chunkPosition += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return chunkLength-chunkPosition;
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		in.close();
+	}
+
+	private boolean nextChunk() throws IOException {
+		if (ended) return false;
+		int rawLength = readInt(in);
+		int storedLength = readInt(in);
+		int checksum = readInt(in);
+		if (rawLength==0) {
+			ended = true;
+			return false;
+		}
+		checkFrame(rawLength, storedLength, chunk.length);
+		if (stored.length<storedLength) stored = new byte[storedLength];
+		readFully(in, stored, storedLength);
+		decodeChunk(inflater, crc, stored, storedLength, chunk, 0, rawLength, checksum);
+		chunkPosition = 0;
+		chunkLength = rawLength;
+		return true;
+	}
+
+	/**
+	 * Reads an entire chunked stream and inflates all of its chunks in parallel, one task per chunk. The compressed data has to
+	 * be read into memory first, but the frame headers mean the result can be allocated once at its final size and each task can
+	 * inflate straight into its own piece of it.
+	 * @param in			The stream to read, positioned at the start of the chunked stream header. It is read up to the end of
+	 * 						the chunked stream, and not closed.
+	 * @param executor		The executor to inflate on
+	 * @return				A ByteBuffer holding all of the inflated data, ready to hand to a StreamableInputStream
+	 * @throws IOException	Thrown if the data is malformed or fails its checksum, or if the stream can't be read.
+	 */
+	public static ByteBuffer inflateAll(InputStream in, ExecutorService executor) throws IOException {
+		int chunkSize = readStreamHeader(in);
+		ArrayList<byte[]> frames = new ArrayList<byte[]>();
+		ArrayList<int[]> headers = new ArrayList<int[]>();
+		long total = 0;
+		while(true) {
+			int rawLength = readInt(in);
+			int storedLength = readInt(in);
+			int checksum = readInt(in);
+			if (rawLength==0) break;
+			checkFrame(rawLength, storedLength, chunkSize);
+			byte[] frame = new byte[storedLength];
+			readFully(in, frame, storedLength);
+			frames.add(frame);
+			headers.add(new int[] { rawLength, checksum });
+			total += rawLength;
+		}
+		if (total>Integer.MAX_VALUE) throw new IOException("Inflated data is too large to hold in one buffer.");
+
+		final byte[] result = new byte[(int)total];
+		List<Future<Void>> tasks = new ArrayList<Future<Void>>(frames.size());
+		int offset = 0;
+		for(int i=0; i<frames.size(); i++) {
+			final byte[] frame = frames.get(i);
+			final int rawLength = headers.get(i)[0];
+			final int checksum = headers.get(i)[1];
+			final int destOffset = offset;
+			tasks.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					Inflater inflater = new Inflater(true);
+					try {
+						decodeChunk(inflater, new CRC32(), frame, frame.length, result, destOffset, rawLength, checksum);
+					} finally {
+						inflater.end();
+					}
+					return null;
+				}
+			}));
+			offset += rawLength;
+		}
+
+		try {
+			for(Future<Void> task : tasks) task.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			for(Future<Void> task : tasks) task.cancel(true);
+			throw new IOException("Interrupted while inflating.", ex);
+		} catch (ExecutionException ex) {
+			for(Future<Void> task : tasks) task.cancel(true);
+			if (ex.getCause() instanceof IOException) throw (IOException)ex.getCause();
+			throw new IOException("Failed to inflate chunk.", ex.getCause());
+		}
+		return ByteBuffer.wrap(result);
+	}
+
+	private static void decodeChunk(Inflater inflater, CRC32 crc, byte[] stored, int storedLength,
+			byte[] dest, int destOffset, int rawLength, int checksum) throws IOException {
+		if (storedLength==rawLength) {
+			System.arraycopy(stored, 0, dest, destOffset, rawLength);
+		} else {
+			inflater.reset();
+			inflater.setInput(stored, 0, storedLength);
+			try {
+				int produced = 0;
+				while(produced<rawLength) {
+					int count = inflater.inflate(dest, destOffset+produced, rawLength-produced);
+					if (count==0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+					produced += count;
+				}
+				if (produced!=rawLength) throw new IOException("Chunk inflated to "+produced+" bytes, expected "+rawLength);
+			} catch (DataFormatException ex) {
+				throw new IOException("Corrupt chunk.", ex);
+			}
+		}
+		crc.reset();
+		crc.update(dest, destOffset, rawLength);
+		if ((int)crc.getValue()!=checksum) throw new IOException("Chunk failed its checksum.");
+	}
+
+	private static void checkFrame(int rawLength, int storedLength, int chunkSize) throws IOException {
+		if (rawLength<0 | rawLength>chunkSize) throw new IOException("Invalid chunk length "+rawLength);
+		if (storedLength<=0 | storedLength>rawLength) throw new IOException("Invalid stored length "+storedLength);
+	}
+
+	/** Reads the stream header, and returns the chunk size. */
+	private static int readStreamHeader(InputStream in) throws IOException {
+		if (in.read()!=ChunkedDeflaterOutputStream.MAGIC_0 ||
+			in.read()!=ChunkedDeflaterOutputStream.MAGIC_1 ||
+			in.read()!=ChunkedDeflaterOutputStream.MAGIC_2) throw new IOException("Not a chunked stream.");
+		int version = in.read();
+		if (version<0) throw new EOFException();
+		if (version>ChunkedDeflaterOutputStream.FORMAT_VERSION) throw new IOException("Unsupported chunked stream version "+version);
+		int chunkSize = readInt(in);
+		if (chunkSize<=0 | chunkSize>ChunkedDeflaterOutputStream.MAX_CHUNK_SIZE) throw new IOException("Invalid chunk size "+chunkSize);
+		return chunkSize;
+	}
+
+	private static int readInt(InputStream in) throws IOException {
+		int total = 0;
+		for(int i=3; i>=0; i--) {
+			int curByte = in.read();
+			if (curByte==-1) throw new EOFException();
+			total |= curByte << (i*8);
+		}
+		return total;
+	}
+
+	private static void readFully(InputStream in, byte[] dest, int length) throws IOException {
+		int total = 0;
+		while(total<length) {
+			int read = in.read(dest, total, length-total);
+			if (read<0) throw new EOFException();
+			total += read;
+		}
+	}
+}
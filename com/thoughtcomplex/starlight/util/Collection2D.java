@@ -4,10 +4,25 @@ import java.util.Collection;
 
 public interface Collection2D<E> {
 	public boolean put(E e, int x, int y);
+	public E get(int x, int y);
+	public int getWidth();
+	public int getHeight();
 	public void clear();
 	public boolean contains(Object o);
 	public boolean containsAll(Collection<?> c);
 	public boolean containsAll(Collection2D<?> c);
 	public boolean isEmpty();
 	
+	/**
+	 * Visits every cell of the rectangle with its top left corner at x,y which lies inside the collection, row by row, without
+	 * allocating anything. Sparse collections may skip cells which are empty (null). Cells shouldn't be put while visiting.
+	 */
+	public void forEachIn(int x, int y, int width, int height, CellVisitor<? super E> visitor);
+	
+	/**
+	 * Receives cells from forEachIn and friends.
+	 */
+	public interface CellVisitor<E> {
+		public void visit(int x, int y, E value);
+	}
 }
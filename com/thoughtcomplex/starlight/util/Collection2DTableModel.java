@@ -0,0 +1,95 @@
+package com.thoughtcomplex.starlight.util;
+
+import javax.swing.event.TableModelListener;
+import javax.swing.table.TableModel;
+
+/**
+ * Shows any Collection2D, such as one of the primitive grids, in a JTable, with column x and row y showing cell x,y. Edits made
+ * through the table go straight into the grid.
+ *
+ * <p>Grids don't report their own changes, so after changing the grid directly, call one of the fire methods here to have the
+ * table catch up.
+ */
+public class Collection2DTableModel<E> implements TableModel {
+	private final Collection2D<E> grid;
+	private final Class<E> type;
+	private final TableModelSupport listeners = new TableModelSupport(this);
+
+	/**
+	 * @param grid		The grid to show
+	 * @param type		The class of the grid's cells, such as Integer.class for an IntGrid, which lets JTable pick a suitable
+	 * 					editor and renderer
+	 */
+	public Collection2DTableModel(Collection2D<E> grid, Class<E> type) {
+		this.grid = grid;
+		this.type = type;
+	}
+
+	public Collection2D<E> getGrid() {
+		return grid;
+	}
+
+	/** Tells the table that cell x,y changed. */
+	public void fireCellChanged(int x, int y) {
+		listeners.fireCellUpdated(y, x);
+	}
+
+	/** Tells the table that rows firstY through lastY, inclusive, changed. */
+	public void fireRowsChanged(int firstY, int lastY) {
+		listeners.fireRowsUpdated(firstY, lastY);
+	}
+
+	/** Tells the table that anything in the grid, including its size, may have changed. */
+	public void fireGridChanged() {
+		listeners.fireStructureChanged();
+	}
+
+	@Override
+	public void addTableModelListener(TableModelListener l) {
+		listeners.addTableModelListener(l);
+	}
+
+	@Override
+	public void removeTableModelListener(TableModelListener l) {
+		listeners.removeTableModelListener(l);
+	}
+
+	@Override
+	public Class<?> getColumnClass(int columnIndex) {
+		return type;
+	}
+
+	@Override
+	public int getColumnCount() {
+		return grid.getWidth();
+	}
+
+	@Override
+	public String getColumnName(int columnIndex) {
+		return Integer.toString(columnIndex);
+	}
+
+	@Override
+	public int getRowCount() {
+		return grid.getHeight();
+	}
+
+	@Override
+	public Object getValueAt(int rowIndex, int columnIndex) {
+		return grid.get(columnIndex, rowIndex);
+	}
+
+	@Override
+	public boolean isCellEditable(int rowIndex, int columnIndex) {
+		return true;
+	}
+
+	@Override
+	public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
+		if (aValue!=null && !type.isInstance(aValue)) {
+			throw new IllegalArgumentException("Cannot cast to internal data type from "+aValue.getClass().getName());
+		}
+		grid.put(type.cast(aValue), columnIndex, rowIndex);
+		listeners.fireCellUpdated(rowIndex, columnIndex);
+	}
+}
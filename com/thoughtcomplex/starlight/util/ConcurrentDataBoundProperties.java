@@ -0,0 +1,386 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.swing.event.TableModelListener;
+
+/**
+ * A DataBoundProperties which can be read from any number of threads while another thread changes it, for instance tuning values
+ * read every frame by the render loop and edited by a tool or network thread.
+ *
+ * <p>Reads never lock or wait. Every completed change publishes an immutable copy of the contents, and get, iteration and the
+ * TableModel reads all work from whichever copy was current when they started, so an iteration never sees a half-made change.
+ * Writers take turns on a lock, and a batch (beginUpdate to endUpdate) holds it throughout, so other threads' changes can't land in
+ * the middle of it and the whole batch is published at once. The lock is a ReentrantLock rather than a StampedLock because batches
+ * nest, and a thread already holding the lock has to be able to take it again. The price is that each write, or each batch, copies
+ * the list of rows, so this suits properties which are read far more often than they're written. The key index is only copied or
+ * rebuilt when keys change: changing values shares the previous index, and adding keys copies it and adds to it.
+ *
+ * <p>Listeners normally run on the writing thread, with the lock held. Use setListenerExecutor to send notifications elsewhere
+ * instead, such as the Swing event thread; by the time they run, the contents may have moved on further.
+ */
+public class ConcurrentDataBoundProperties extends DataBoundProperties {
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile State state = new State(new ArrayList<Entry<String,String>>(), false, null, 0);
+	private volatile Executor executor = null;
+
+	public ConcurrentDataBoundProperties() {}
+
+	/**
+	 * Sets the Executor which TableModel and BoundData listeners are notified on. Null, the default, notifies them immediately on
+	 * the writing thread.
+	 */
+	public void setListenerExecutor(Executor executor) {
+		lock.lock();
+		try {
+			this.executor = executor;
+			listeners.setExecutor(executor);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Executor getListenerExecutor() {
+		return executor;
+	}
+
+	/* Reads, all from the published state. */
+
+	@Override
+	public String get(Object o) {
+		State current = state;
+		int row = current.rowOf(o);
+		return (row<0) ? null : current.rows.get(row).getValue();
+	}
+
+	@Override
+	public int rowOf(Object key) {
+		return state.rowOf(key);
+	}
+
+	/** The typed getters come through here, so they read the published rows and share their parsed values too. */
+	@Override
+	Row lookup(Object key) {
+		State current = state;
+		int row = current.rowOf(key);
+		return (row<0) ? null : (Row)current.rows.get(row);
+	}
+
+	@Override
+	public boolean isCaseSensitive() {
+		return state.caseSensitive;
+	}
+
+	@Override
+	public int size() {
+		return state.rows.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return state.rows.isEmpty();
+	}
+
+	@Override
+	public int getRowCount() {
+		return state.rows.size();
+	}
+
+	@Override
+	public Object getValueAt(int rowIndex, int columnIndex) {
+		List<Entry<String,String>> rows = state.rows;
+		if (rowIndex<0 | rowIndex>=rows.size()) throw new IndexOutOfBoundsException("Invalid row index.");
+		if (columnIndex<0 | columnIndex>=2) throw new IndexOutOfBoundsException("Invalid column index.");
+
+		return (columnIndex==0) ? rows.get(rowIndex).getKey() : rows.get(rowIndex).getValue();
+	}
+
+	/** Iterates over the contents as they were when this was called. The entries can't be changed through the iterator. */
+	@Override
+	public Iterator<Entry<String,String>> iterator() {
+		return state.rows.iterator();
+	}
+
+	@Override
+	public Enumeration<String> keys() {
+		return new StateEnumeration(state.rows, true);
+	}
+
+	@Override
+	public Enumeration<String> elements() {
+		return new StateEnumeration(state.rows, false);
+	}
+
+	@Override
+	public DataBoundProperties captureSnapshot() {
+		State current = state;
+		return copyOf(current.rows, current.caseSensitive);
+	}
+
+	@Override
+	public void streamTo(OutputStream out) throws IOException {
+		List<Entry<String,String>> rows = state.rows;
+		Streamable.Helper.intToStream(rows.size(), out);
+		for(Entry<String,String> entry : rows) {
+			Streamable.Helper.stringToStream(entry.getKey(), out);
+			Streamable.Helper.stringToStream(streamableValue(entry.getValue()), out);
+		}
+	}
+
+	/* Writes, all under the lock. */
+
+	@Override
+	public void setCaseSensitive(boolean caseSensitive) {
+		lock.lock();
+		try {
+			super.setCaseSensitive(caseSensitive);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
+		lock.lock();
+		try {
+			super.setValueAt(aValue, rowIndex, columnIndex);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String put(String k, String v) {
+		lock.lock();
+		try {
+			return super.put(k, v);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends String> values) {
+		lock.lock();
+		try {
+			super.putAll(values);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			super.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String remove(Object k) {
+		lock.lock();
+		try {
+			return super.remove(k);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts a batch of changes, taking the write lock until the matching endUpdate. Other writers wait until the batch is over, and
+	 * readers keep seeing the contents from before it.
+	 */
+	@Override
+	public void beginUpdate() {
+		lock.lock();
+		super.beginUpdate();
+	}
+
+	@Override
+	public void endUpdate() {
+		if (!lock.isHeldByCurrentThread()) throw new IllegalStateException("endUpdate called without a matching beginUpdate.");
+		try {
+			super.endUpdate();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void streamFrom(InputStream in) throws IOException {
+		lock.lock();
+		try {
+			super.streamFrom(in);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void addTableModelListener(TableModelListener l) {
+		lock.lock();
+		try {
+			super.addTableModelListener(l);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void removeTableModelListener(TableModelListener l) {
+		lock.lock();
+		try {
+			super.removeTableModelListener(l);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void bind(BoundDataListener listener) {
+		lock.lock();
+		try {
+			super.bind(listener);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void unbind(BoundDataListener listener) {
+		lock.lock();
+		try {
+			super.unbind(listener);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Called with the lock held, whenever a change is complete and before anyone is notified of it. */
+	@Override
+	void contentsChanged() {
+		State published = state;
+		List<Entry<String,String>> previous = published.rows;
+		ArrayList<Entry<String,String>> rows = new ArrayList<Entry<String,String>>(super.size());
+		//How many rows from the top still hold the same keys as before. If that's all of the old rows, the old index still holds.
+		int sameKeys = 0;
+		Iterator<Entry<String,String>> i = super.iterator();
+		while(i.hasNext()) {
+			Entry<String,String> entry = i.next();
+			int row = rows.size();
+			if (row<previous.size()) {
+				Entry<String,String> old = previous.get(row);
+				if (old.getKey()==entry.getKey()) {
+					if (sameKeys==row) sameKeys++;
+					//Rows which haven't changed carry over, along with any values already parsed from them.
+					if (old.getValue()==entry.getValue()) {
+						rows.add(old);
+						continue;
+					}
+				}
+			}
+			rows.add(new Row(entry.getKey(), entry.getValue(), true));
+		}
+		boolean caseSensitive = super.isCaseSensitive();
+		if (caseSensitive==published.caseSensitive && sameKeys==previous.size()) {
+			state = new State(rows, caseSensitive, published.index, sameKeys);
+		} else {
+			state = new State(rows, caseSensitive, null, 0);
+		}
+	}
+
+	@Override
+	void fireBoundDataNotification() {
+		Executor executor = this.executor;
+		if (executor==null) {
+			super.fireBoundDataNotification();
+			return;
+		}
+		final BoundDataListener[] targets = boundDataListeners.toArray(new BoundDataListener[boundDataListeners.size()]);
+		if (targets.length==0) return;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for(BoundDataListener listener : targets) listener.boundDataChanged(ConcurrentDataBoundProperties.this);
+			}
+		});
+	}
+
+	/** One published copy of the contents. Never changed once made, so a later State can share its index. */
+	private static class State {
+		private final List<Entry<String,String>> rows;
+		private final HashMap<String,Integer> index;
+		private final boolean caseSensitive;
+
+		/**
+		 * @param base		An index which is already right for the first indexed rows, or null to index every row
+		 * @param indexed	How many rows the base index covers. If that's all of them, the base index is shared, not copied.
+		 */
+		private State(ArrayList<Entry<String,String>> rows, boolean caseSensitive, HashMap<String,Integer> base, int indexed) {
+			this.rows = Collections.unmodifiableList(rows);
+			this.caseSensitive = caseSensitive;
+			if (base!=null && indexed==rows.size()) {
+				this.index = base;
+				return;
+			}
+			if (base==null) {
+				this.index = new HashMap<String,Integer>(rows.size()*2);
+				indexed = 0;
+			} else {
+				this.index = new HashMap<String,Integer>(base);
+			}
+			for(int i=indexed; i<rows.size(); i++) {
+				String key = indexKey(rows.get(i).getKey());
+				if (!index.containsKey(key)) index.put(key, i);
+			}
+		}
+
+		private int rowOf(Object key) {
+			if (key==null) return -1;
+			if (caseSensitive && !(key instanceof String)) return -1;
+			String name = key.toString();
+			Integer row = index.get((caseSensitive) ? name : lookupKey(name));
+			return (row==null) ? -1 : row;
+		}
+
+		private String indexKey(String key) {
+			return (caseSensitive) ? key : foldCase(key);
+		}
+	}
+
+	private static class StateEnumeration implements Enumeration<String> {
+		private final Iterator<Entry<String,String>> rows;
+		private final boolean enumeratesKeys;
+
+		private StateEnumeration(List<Entry<String,String>> rows, boolean enumeratesKeys) {
+			this.rows = rows.iterator();
+			this.enumeratesKeys = enumeratesKeys;
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			return rows.hasNext();
+		}
+
+		@Override
+		public String nextElement() {
+			Entry<String,String> cur = rows.next();
+			return (enumeratesKeys) ? cur.getKey() : cur.getValue();
+		}
+	}
+}
@@ -3,11 +3,16 @@ package com.thoughtcomplex.starlight.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Properties;
@@ -16,20 +21,61 @@ import javax.swing.event.TableModelEvent;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.TableModel;
 
+import com.thoughtcomplex.starlight.image.GLColor;
+
 public class DataBoundProperties
 							extends Dictionary<String,String>
-							implements TableModel, BoundData, Iterable<Entry<String,String>>, Streamable  {
+							implements TableModel, BoundData, Iterable<Entry<String,String>>, Streamable, Snapshottable  {
+	/** Must be a power of two. */
+	private static final int FOLDED_KEY_SLOTS = 64;
+	/**
+	 * The folded forms of keys recently looked up which weren't already folded, by the identity of the key String, so that a typed
+	 * getter called every frame with the same key constant doesn't fold a new copy of it every time. Each slot is replaced whole,
+	 * and never changed, so the cache is shared between every instance and every thread without locking.
+	 */
+	private static final FoldedKey[] foldedKeys = new FoldedKey[FOLDED_KEY_SLOTS];
+	
 	Properties dataSource;
-	private ArrayList<TableModelListener> listeners = new ArrayList<TableModelListener>();
-	private ArrayList<BoundDataListener> boundDataListeners = new ArrayList<BoundDataListener>();
-	private ArrayList<SimpleEntry<String, String>> data = new ArrayList<SimpleEntry<String,String>>();
+	TableModelSupport listeners = new TableModelSupport(this);
+	ArrayList<BoundDataListener> boundDataListeners = new ArrayList<BoundDataListener>();
+	private ArrayList<Row> data = new ArrayList<Row>();
+	/**
+	 * Maps each key (case-folded, unless caseSensitive) to the first Row holding it. Row order lives in data; each Row knows its own
+	 * position there, so when rows move up after a remove, only the Rows change, and the index doesn't.
+	 */
+	private HashMap<String,Row> index = new HashMap<String,Row>();
 	boolean caseSensitive = false;
+	/** If this is being journaled, the journal every change is reported to. */
+	PropertiesJournal journal = null;
+	
+	//Batched update state. While updateDepth>0, changes are only recorded here, and reported all at once by endUpdate.
+	private int updateDepth = 0;
+	private boolean pendingChange = false;
+	private boolean pendingStructureChange = false;
+	private int rowsAtBatchStart = 0;
+	private int firstUpdatedRow = Integer.MAX_VALUE;
+	private int lastUpdatedRow = -1;
 	
 	public DataBoundProperties() {}
 	
+	public boolean isCaseSensitive() {
+		return caseSensitive;
+	}
+	
+	/**
+	 * Sets whether keys are compared case-sensitively. If keys which used to be different become equal, lookups find the first of
+	 * them in row order.
+	 */
+	public void setCaseSensitive(boolean caseSensitive) {
+		if (this.caseSensitive==caseSensitive) return;
+		this.caseSensitive = caseSensitive;
+		rebuildIndex();
+		contentsChanged();
+	}
+	
 	@Override
 	public void addTableModelListener(TableModelListener l) {
-		listeners.add(l);
+		listeners.addTableModelListener(l);
 	}
 
 	@Override
@@ -72,7 +118,7 @@ public class DataBoundProperties
 
 	@Override
 	public void removeTableModelListener(TableModelListener l) {
-		listeners.remove(l);
+		listeners.removeTableModelListener(l);
 	}
 
 	@Override
@@ -83,21 +129,29 @@ public class DataBoundProperties
 		
 		if (rowIndex<0 | rowIndex>=data.size()) throw new IndexOutOfBoundsException("Invalid row index.");
 		if (columnIndex<0 | columnIndex>=2) throw new IndexOutOfBoundsException("Invalid column index.");
+		if (journal!=null) journal.recordCell(rowIndex, columnIndex, stringValue);
 		
 		if (columnIndex==0) {
-			String priorValue = data.get(rowIndex).getValue();
-			data.set(rowIndex, new SimpleEntry<String,String>(stringValue,priorValue));
-			fireDataChangeNotification();
+			Row prior = data.get(rowIndex);
+			Row renamed = new Row(stringValue,prior.getValue());
+			renamed.position = rowIndex;
+			data.set(rowIndex, renamed);
+			unindexRow(prior);
+			indexRow(renamed);
+			rowUpdated(rowIndex, 0);
 			return;
 		}
 		if (columnIndex==1) {
 			if (data.get(rowIndex)==null) {
-				data.set(rowIndex, new SimpleEntry<String,String>(stringValue,""));
-				fireDataChangeNotification();
+				Row row = new Row(stringValue,"");
+				row.position = rowIndex;
+				data.set(rowIndex, row);
+				indexRow(row);
+				rowUpdated(rowIndex, TableModelEvent.ALL_COLUMNS);
 				return;
 			}
 			data.get(rowIndex).setValue(stringValue);
-			fireDataChangeNotification();
+			rowUpdated(rowIndex, 1);
 			return;
 		}
 	}
@@ -106,15 +160,144 @@ public class DataBoundProperties
 
 	@Override
 	public String get(Object o) {
-		for(SimpleEntry<String,String> row : data) {
-			if (caseSensitive) {
-				if (row.getKey().equals(o)) return row.getValue();
-			} else {
-				if (row.getKey().equalsIgnoreCase(o.toString())) return row.getValue();
+		int row = findRow(o);
+		if (row<0) return null;
+		return data.get(row).getValue();
+	}
+	
+	/**
+	 * Returns the value for this key as an int, or defaultValue if the key is missing or its value isn't an int. The parsed value
+	 * is kept until the value changes, so repeated reads don't parse anything.
+	 */
+	public int getInt(Object key, int defaultValue) {
+		Row row = lookup(key);
+		return (row==null) ? defaultValue : row.getInt(defaultValue);
+	}
+	
+	/**
+	 * Returns the value for this key as a float, or defaultValue if the key is missing or its value isn't a number. The parsed value
+	 * is kept until the value changes.
+	 */
+	public float getFloat(Object key, float defaultValue) {
+		Row row = lookup(key);
+		return (row==null) ? defaultValue : row.getFloat(defaultValue);
+	}
+	
+	/**
+	 * Returns the value for this key as a boolean, or defaultValue if the key is missing or its value isn't one of true/false,
+	 * yes/no, on/off or 1/0 (in any case). The parsed value is kept until the value changes.
+	 */
+	public boolean getBoolean(Object key, boolean defaultValue) {
+		Row row = lookup(key);
+		return (row==null) ? defaultValue : row.getBoolean(defaultValue);
+	}
+	
+	/**
+	 * Returns the value for this key as a color, or defaultValue if the key is missing or its value isn't a color. Colors are
+	 * written either as hex, "#RRGGBB" or "#RRGGBBAA", or as three or four comma-separated floats from 0 to 1. The parsed color is
+	 * kept until the value changes, and the same GLColor is returned every time, so it must not be modified.
+	 */
+	public GLColor getColor(Object key, GLColor defaultValue) {
+		Row row = lookup(key);
+		return (row==null) ? defaultValue : row.getColor(defaultValue);
+	}
+	
+	/**
+	 * Returns the first row holding this key, or -1 if there isn't one.
+	 */
+	public int rowOf(Object key) {
+		return findRow(key);
+	}
+	
+	/** Returns the first Row holding this key, or null if there isn't one. */
+	Row lookup(Object key) {
+		return indexedRow(key);
+	}
+	
+	/** Looks a key up in this table's own index, which subclasses reading from elsewhere don't override. */
+	private Row indexedRow(Object key) {
+		if (key==null) return null;
+		if (caseSensitive && !(key instanceof String)) return null;
+		String name = key.toString();
+		return index.get((caseSensitive) ? name : lookupKey(name));
+	}
+	
+	private int findRow(Object key) {
+		Row row = indexedRow(key);
+		return (row==null) ? -1 : row.position;
+	}
+	
+	private String indexKey(String key) {
+		return (caseSensitive) ? key : foldCase(key);
+	}
+	
+	/**
+	 * Folds a key which is only being looked up, never stored, through the cache of recently folded keys. Keys being stored go
+	 * straight through foldCase instead, since each one is only folded once and then kept in the index.
+	 */
+	static String lookupKey(String key) {
+		int slot = System.identityHashCode(key) & (FOLDED_KEY_SLOTS-1);
+		FoldedKey cached = foldedKeys[slot];
+		if (cached!=null && cached.key==key) return cached.folded;
+		String folded = foldCase(key);
+		if (folded!=key) foldedKeys[slot] = new FoldedKey(key, folded);
+		return folded;
+	}
+	
+	/**
+	 * Folds a String so that two Strings fold to the same thing exactly when equalsIgnoreCase would call them equal. Strings which
+	 * are already folded, as most keys are, come back as the same instance without any allocation.
+	 */
+	static String foldCase(String s) {
+		int len = s.length();
+		for(int i=0; i<len; i++) {
+			char c = s.charAt(i);
+			if (Character.toLowerCase(Character.toUpperCase(c))==c) continue;
+			char[] folded = s.toCharArray();
+			for(int j=i; j<len; j++) folded[j] = Character.toLowerCase(Character.toUpperCase(folded[j]));
+			return new String(folded);
+		}
+		return s;
+	}
+	
+	/** Indexes everything from scratch. Only for changes which touch every key; single rows go through indexRow and unindexRow. */
+	private void rebuildIndex() {
+		index.clear();
+		for(int i=0; i<data.size(); i++) {
+			Row row = data.get(i);
+			row.position = i;
+			String key = indexKey(row.getKey());
+			if (!index.containsKey(key)) index.put(key, row);
+		}
+	}
+	
+	/** Records that a row, already in place in data, now holds its key, unless an earlier row already does. */
+	private void indexRow(Row row) {
+		String indexed = indexKey(row.getKey());
+		Row first = index.get(indexed);
+		if (first==null || first.position>row.position) index.put(indexed, row);
+	}
+	
+	/**
+	 * Records that a row no longer holds its key. If it was the first row holding it, the next one which does takes its place;
+	 * only the rows after it are searched, and without allocating anything, since keys are rarely held twice.
+	 */
+	private void unindexRow(Row row) {
+		String indexed = indexKey(row.getKey());
+		if (index.get(indexed)!=row) return;
+		index.remove(indexed);
+		indexNextHolder(row.getKey(), indexed, row.position+1);
+	}
+	
+	/** Indexes the first row from start onward which holds this key, if there is one. */
+	private void indexNextHolder(String key, String indexed, int start) {
+		for(int i=start; i<data.size(); i++) {
+			Row other = data.get(i);
+			if ((caseSensitive) ? key.equals(other.getKey()) : key.equalsIgnoreCase(other.getKey())) {
+				index.put(indexed, other);
+				return;
 			}
 		}
-		
-		return null;
 	}
 
 	@Override
@@ -134,55 +317,100 @@ public class DataBoundProperties
 	
 	@Override
 	public String put(String k, String v) {
-		for(SimpleEntry<String,String> row : data) {
-			if (caseSensitive) {
-				if (row.getKey().equals(k)) {
-					String oldValue = row.getValue();
-					row.setValue(v);
-					for(TableModelListener listener : listeners) listener.tableChanged(new TableModelEvent(this));
-					return oldValue;
-				}
-			} else {
-				if (row.getKey().equalsIgnoreCase(k)) {
-					String oldValue = row.getValue();
-					row.setValue(v);
-					for(TableModelListener listener : listeners) listener.tableChanged(new TableModelEvent(this));
-					return oldValue;
-				}
-			}
+		String key = indexKey(k);
+		if (journal!=null) journal.recordPut(k, v);
+		Row existing = index.get(key);
+		if (existing!=null) {
+			String oldValue = existing.getValue();
+			existing.setValue(v);
+			rowUpdated(existing.position, 1);
+			return oldValue;
 		}
 		
-		data.add(new SimpleEntry<String,String>(k,v));
-		fireDataChangeNotification();
+		Row row = new Row(k,v);
+		row.position = data.size();
+		index.put(key, row);
+		data.add(row);
+		rowInserted(row.position);
 		return null;
 	}
+	
+	/**
+	 * Adds a row at the end, even if an earlier row already holds its key. Only for putting rows back exactly as they were, as
+	 * streamFrom and journal replay do; everything else goes through put.
+	 */
+	void appendRow(String k, String v) {
+		if (journal!=null) journal.recordAppend(k, v);
+		Row row = new Row(k,v);
+		row.position = data.size();
+		data.add(row);
+		indexRow(row);
+		rowInserted(row.position);
+	}
+	
+	/**
+	 * Puts every entry of the Map, in the Map's iteration order, as a single batch of changes.
+	 */
+	public void putAll(Map<? extends String, ? extends String> values) {
+		beginUpdate();
+		try {
+			for(Map.Entry<? extends String, ? extends String> entry : values.entrySet()) put(entry.getKey(), entry.getValue());
+		} finally {
+			endUpdate();
+		}
+	}
 
+	/**
+	 * Reads entries in the text format of java.util.Properties and puts each one, in order, as a single batch of changes. Input of
+	 * any size is read in one pass with a small fixed buffer. The Reader is not closed.
+	 */
+	public void loadProperties(Reader in) throws IOException {
+		PropertiesFormat.load(in, this);
+	}
+	
+	/**
+	 * Writes every entry, in row order, in the text format of java.util.Properties. The Writer is flushed but not closed.
+	 */
+	public void storeProperties(Writer out) throws IOException {
+		PropertiesFormat.store(iterator(), out);
+	}
+
+	/**
+	 * Removes the first row holding this key. This takes time in proportion to the number of rows after it, the same as the
+	 * ArrayList removal underneath, since each of them moves up one; the index itself only loses the one key.
+	 */
 	@Override
 	public String remove(Object k) {
-		int rowToRemove = -1;
-		String removedValue = null;
+		Row removed = indexedRow(k);
+		if (removed==null) return null;
+		if (journal!=null) journal.recordRemove(k.toString());
 		
-		for(int i=0; i<data.size();i++) {
-			SimpleEntry<String,String> row = data.get(i);
-			
-			if (caseSensitive) {
-				if (row.getKey().equals(k)) {
-					removedValue = row.getValue();
-					rowToRemove = i;
-				}
-			} else {
-				if (row.getKey().equalsIgnoreCase(k.toString())) {
-					removedValue = row.getValue();
-					rowToRemove = i;
-				}
-			}
+		int rowToRemove = removed.position;
+		data.remove(rowToRemove);
+		for(int i=rowToRemove; i<data.size(); i++) data.get(i).position = i;
+		String indexed = indexKey(removed.getKey());
+		index.remove(indexed);
+		indexNextHolder(removed.getKey(), indexed, rowToRemove);
+		rowDeleted(rowToRemove);
+		return removed.getValue();
+	}
+
+	/**
+	 * Removes every row.
+	 */
+	public void clear() {
+		if (data.isEmpty()) return;
+		if (journal!=null) journal.recordClear();
+		data.clear();
+		index.clear();
+		if (updateDepth>0) {
+			pendingChange = true;
+			pendingStructureChange = true;
+			return;
 		}
-		
-		if (rowToRemove>=0) {
-			data.remove(rowToRemove);
-			fireDataChangeNotification();
-			return removedValue;
-		} else return null;
+		contentsChanged();
+		listeners.fireTableChanged();
+		fireBoundDataNotification();
 	}
 
 	@Override
@@ -197,11 +425,11 @@ public class DataBoundProperties
 	
 	private class DataBoundPropertiesEnumeration implements Enumeration<String> {
 
-		private ArrayList<SimpleEntry<String,String>> data;
+		private ArrayList<Row> data;
 		private boolean enumeratesKeys = true;
 		private int index = 0;
 		
-		private DataBoundPropertiesEnumeration(ArrayList<SimpleEntry<String,String>> data, boolean enumeratesKeys) {
+		private DataBoundPropertiesEnumeration(ArrayList<Row> data, boolean enumeratesKeys) {
 			this.data = data;
 			this.enumeratesKeys = enumeratesKeys;
 		}
@@ -233,7 +461,7 @@ public class DataBoundProperties
 		
 		@Override
 		public boolean hasNext() {
-			return index<data.size();
+			return index<data.data.size();
 		}
 
 		@Override
@@ -252,8 +480,95 @@ public class DataBoundProperties
 		
 	}
 
-	private void fireDataChangeNotification() {
-		for(TableModelListener listener : listeners) listener.tableChanged(new TableModelEvent(this));
+	/**
+	 * Starts a batch of changes. Until the matching endUpdate, listeners hear nothing; then they hear about the whole batch at once,
+	 * in a single event covering every row it touched. Batches may be nested, in which case only the outermost endUpdate reports.
+	 * Always pair this with endUpdate in a finally block.
+	 */
+	public void beginUpdate() {
+		if (updateDepth==0) {
+			pendingChange = false;
+			pendingStructureChange = false;
+			rowsAtBatchStart = data.size();
+			firstUpdatedRow = Integer.MAX_VALUE;
+			lastUpdatedRow = -1;
+		}
+		updateDepth++;
+	}
+	
+	/**
+	 * Ends a batch of changes started with beginUpdate, and notifies listeners if anything changed.
+	 * @throws IllegalStateException	Thrown if there is no batch to end.
+	 */
+	public void endUpdate() {
+		if (updateDepth==0) throw new IllegalStateException("endUpdate called without a matching beginUpdate.");
+		updateDepth--;
+		if (updateDepth>0 || !pendingChange) return;
+		pendingChange = false;
+		
+		contentsChanged();
+		boolean inserted = data.size()>rowsAtBatchStart;
+		boolean updated = lastUpdatedRow>=0;
+		if (pendingStructureChange || (inserted && updated)) {
+			listeners.fireTableChanged();
+		} else if (inserted) {
+			listeners.fireRowsInserted(rowsAtBatchStart, data.size()-1);
+		} else {
+			listeners.fireRowsUpdated(firstUpdatedRow, lastUpdatedRow);
+		}
+		fireBoundDataNotification();
+	}
+	
+	/** Returns true if a batch of changes is in progress. */
+	public boolean isUpdating() {
+		return updateDepth>0;
+	}
+	
+	/** One row changed. column is the column which changed, or TableModelEvent.ALL_COLUMNS. */
+	private void rowUpdated(int row, int column) {
+		if (updateDepth>0) {
+			pendingChange = true;
+			if (row<rowsAtBatchStart) {
+				firstUpdatedRow = Math.min(firstUpdatedRow, row);
+				lastUpdatedRow = Math.max(lastUpdatedRow, row);
+			}
+			return;
+		}
+		contentsChanged();
+		if (column==TableModelEvent.ALL_COLUMNS) listeners.fireRowsUpdated(row, row);
+		else listeners.fireCellUpdated(row, column);
+		fireBoundDataNotification();
+	}
+	
+	private void rowInserted(int row) {
+		if (updateDepth>0) {
+			pendingChange = true;
+			return;
+		}
+		contentsChanged();
+		listeners.fireRowsInserted(row, row);
+		fireBoundDataNotification();
+	}
+	
+	private void rowDeleted(int row) {
+		if (updateDepth>0) {
+			//Row indices recorded so far in this batch no longer line up, so the batch ends with a full refresh.
+			pendingChange = true;
+			pendingStructureChange = true;
+			return;
+		}
+		contentsChanged();
+		listeners.fireRowsDeleted(row, row);
+		fireBoundDataNotification();
+	}
+	
+	/**
+	 * Called whenever a change (or a whole batch of them) is complete, just before listeners hear about it. Subclasses which keep
+	 * their own view of the contents can bring it up to date here.
+	 */
+	void contentsChanged() {}
+	
+	void fireBoundDataNotification() {
 		for(BoundDataListener listener : boundDataListeners) listener.boundDataChanged(this);
 	}
 	
@@ -267,24 +582,204 @@ public class DataBoundProperties
 		boundDataListeners.remove(listener);
 	}
 
+	@Override
+	public DataBoundProperties captureSnapshot() {
+		return copyRows();
+	}
+	
+	/** Copies the rows as they stand right now, even in a subclass which normally reads from elsewhere. */
+	final DataBoundProperties copyRows() {
+		return copyOf(data, caseSensitive);
+	}
+	
+	/**
+	 * Creates a new, unbound DataBoundProperties holding copies of these rows, in order, exactly as they are (even rows whose keys
+	 * are equal).
+	 */
+	static DataBoundProperties copyOf(Collection<? extends Entry<String,String>> rows, boolean caseSensitive) {
+		DataBoundProperties result = new DataBoundProperties();
+		result.caseSensitive = caseSensitive;
+		result.data.ensureCapacity(rows.size());
+		for(Entry<String,String> entry : rows) result.data.add(new Row(entry.getKey(), entry.getValue()));
+		result.rebuildIndex();
+		return result;
+	}
+
 	@Override
 	public void streamTo(OutputStream out) throws IOException {
 		Streamable.Helper.intToStream(data.size(), out);
 		for(SimpleEntry<String,String> entry : data) {
 			Streamable.Helper.stringToStream(entry.getKey(), out);
-			Streamable.Helper.stringToStream(entry.getValue(), out);
+			Streamable.Helper.stringToStream(streamableValue(entry.getValue()), out);
 		}
 	}
+	
+	/** Null values can't be streamed, so they're written as empty. */
+	static String streamableValue(String value) {
+		return (value==null) ? "" : value;
+	}
 
+	/**
+	 * Reads the properties in as a single batch of changes, so listeners are notified once at the end rather than once per entry.
+	 * Rows come back exactly as they were written, in order, even rows whose keys are equal.
+	 */
 	@Override
 	public void streamFrom(InputStream in) throws IOException {
-		this.data.clear(); //Just in case we're called on an old object instead of a new one: wipe out the old data.
-		int length = Streamable.Helper.intFromStream(in);
-		if (length<=0) return;
-		for(int i=0; i<length; i++) {
-			String k = Streamable.Helper.stringFromStream(in);
-			String v = Streamable.Helper.stringFromStream(in);
-			put(k, v);
+		beginUpdate();
+		try {
+			clear(); //Just in case we're called on an old object instead of a new one: wipe out the old data.
+			int length = Streamable.Helper.intFromStream(in);
+			if (length<=0) return;
+			for(int i=0; i<length; i++) {
+				String k = Streamable.Helper.stringFromStream(in);
+				String v = Streamable.Helper.stringFromStream(in);
+				appendRow(k, v);
+			}
+		} finally {
+			endUpdate();
+		}
+	}
+	
+	/**
+	 * A row of the table, which also keeps the value parsed as each of the types the typed getters return. Each kind is parsed the
+	 * first time it's asked for, and forgotten when the value changes. A value which fails to parse is remembered as a failure, so
+	 * it isn't retried every time either.
+	 */
+	static class Row extends SimpleEntry<String,String> {
+		private static final long serialVersionUID = 1L;
+		
+		private static final int INT = 0x01;
+		private static final int FLOAT = 0x04;
+		private static final int BOOLEAN = 0x10;
+		private static final int COLOR = 0x40;
+		//For each kind, its bit means "parsed", and the bit above it means "parsed successfully".
+		private static final int VALID = 1;
+		
+		private final boolean readOnly;
+		/** Where this row is in its table's data, kept up to date by the table. Meaningless in copies. */
+		private int position = -1;
+		/** Which kinds have been parsed, and which of those succeeded. Written last, so anyone who sees a bit set sees the value too. */
+		private volatile int parsed = 0;
+		private int intValue;
+		private float floatValue;
+		private boolean booleanValue;
+		private GLColor colorValue;
+		
+		Row(String key, String value) {
+			this(key, value, false);
+		}
+		
+		/** Creates a Row which may be read-only, for copies that are shared between threads. */
+		Row(String key, String value, boolean readOnly) {
+			super(key, value);
+			this.readOnly = readOnly;
+		}
+		
+		@Override
+		public String setValue(String value) {
+			if (readOnly) throw new UnsupportedOperationException("This row is read-only.");
+			String oldValue = super.setValue(value);
+			parsed = 0;
+			return oldValue;
+		}
+		
+		int getInt(int defaultValue) {
+			int flags = parsed;
+			if ((flags & INT)==0) {
+				boolean valid = true;
+				try {
+					intValue = Integer.parseInt(getValue().trim());
+				} catch (RuntimeException ex) { //NumberFormatException, or NullPointerException for a null value
+					valid = false;
+				}
+				flags = markParsed(INT, valid);
+			}
+			return ((flags & (INT<<VALID))!=0) ? intValue : defaultValue;
+		}
+		
+		float getFloat(float defaultValue) {
+			int flags = parsed;
+			if ((flags & FLOAT)==0) {
+				boolean valid = true;
+				try {
+					floatValue = Float.parseFloat(getValue());
+				} catch (RuntimeException ex) {
+					valid = false;
+				}
+				flags = markParsed(FLOAT, valid);
+			}
+			return ((flags & (FLOAT<<VALID))!=0) ? floatValue : defaultValue;
+		}
+		
+		boolean getBoolean(boolean defaultValue) {
+			int flags = parsed;
+			if ((flags & BOOLEAN)==0) {
+				String value = (getValue()==null) ? "" : getValue().trim();
+				boolean valid = true;
+				if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("on") || value.equals("1")) {
+					booleanValue = true;
+				} else if (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equalsIgnoreCase("off") || value.equals("0")) {
+					booleanValue = false;
+				} else {
+					valid = false;
+				}
+				flags = markParsed(BOOLEAN, valid);
+			}
+			return ((flags & (BOOLEAN<<VALID))!=0) ? booleanValue : defaultValue;
+		}
+		
+		GLColor getColor(GLColor defaultValue) {
+			int flags = parsed;
+			if ((flags & COLOR)==0) {
+				colorValue = parseColor(getValue());
+				flags = markParsed(COLOR, colorValue!=null);
+			}
+			return ((flags & (COLOR<<VALID))!=0) ? colorValue : defaultValue;
+		}
+		
+		private int markParsed(int kind, boolean valid) {
+			int flags = parsed | kind;
+			if (valid) flags |= kind<<VALID;
+			parsed = flags;
+			return flags;
+		}
+		
+		/** Parses "#RRGGBB", "#RRGGBBAA", or "r,g,b" / "r,g,b,a" with float components. Returns null if it's neither. */
+		static GLColor parseColor(String value) {
+			if (value==null) return null;
+			value = value.trim();
+			try {
+				if (value.startsWith("#")) {
+					if (value.length()!=7 && value.length()!=9) return null;
+					long rgba = Long.parseLong(value.substring(1), 16);
+					if (value.length()==7) rgba = (rgba << 8) | 0xFF;
+					return new GLColor(
+							((rgba >> 24) & 0xFF)/255.0f,
+							((rgba >> 16) & 0xFF)/255.0f,
+							((rgba >>  8) & 0xFF)/255.0f,
+							( rgba        & 0xFF)/255.0f);
+				}
+				String[] parts = value.split(",");
+				if (parts.length!=3 && parts.length!=4) return null;
+				float r = Float.parseFloat(parts[0]);
+				float g = Float.parseFloat(parts[1]);
+				float b = Float.parseFloat(parts[2]);
+				float a = (parts.length==4) ? Float.parseFloat(parts[3]) : 1.0f;
+				return new GLColor(r, g, b, a);
+			} catch (NumberFormatException ex) {
+				return null;
+			}
+		}
+	}
+	
+	/** A key and its folded form, for the foldedKeys cache. */
+	private static class FoldedKey {
+		private final String key;
+		private final String folded;
+		
+		private FoldedKey(String key, String folded) {
+			this.key = key;
+			this.folded = folded;
 		}
 	}
 }
@@ -1,58 +1,238 @@
 package com.thoughtcomplex.starlight.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 
 import javax.swing.event.TableModelListener;
 import javax.swing.table.TableModel;
 
-public class DataTable<T> implements TableModel {
+/**
+ * A table of cells which grows to fit whatever is set into it. Cells which have never been set read as null.
+ *
+ * <p>The cells live in one flat array, row after row, with room to spare at the end of each row and below the last one, so get and
+ * set are a single array access and the width and height are simply kept track of. When the table outgrows its array, the array
+ * at least doubles in whichever direction ran out, so filling a table one cell at a time costs amortized constant time per cell.
+ *
+ * <p>Tables stream in the same palettized, run-length encoded form as the primitive grids (see Grids): each distinct value is
+ * written once, through the table's CellCodec, and the rows are written as runs of small indices into that palette.
+ */
+public class DataTable<T> implements TableModel, Collection2D<T>, Snapshottable {
+	private static final int MINIMUM_CAPACITY = 8;
+	/** The largest array most VMs will allocate. */
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE-8;
 	
-	ArrayList<ArrayList<T>> data;
-	ArrayList<TableModelListener> listeners = new ArrayList<TableModelListener>();
+	/** The cells, row-major: cell x,y is at y*stride+x. */
+	Object[] cells = new Object[0];
+	/** How many cells each row has room for. */
+	int stride = 0;
+	/** How many rows there is room for. */
+	int rowCapacity = 0;
+	TableModelSupport listeners = new TableModelSupport(this);
+	/** The length of the longest row. Rows only ever grow, so this is kept up to date in set rather than searched for. */
+	int width = 0;
+	int height = 0;
+	/** If the table is indexed, where each non-null value is, as packed x,y positions. Null when it isn't. */
+	HashMap<Object, LongHashMap<Boolean>> index = null;
+	/** If the table is indexed, how many cells aren't null. */
+	long indexedCount = 0;
+	/** How the distinct values in the table are written and read. */
+	CellCodec<T> codec = defaultCodec();
 	
-	public DataTable() {
-		data = new ArrayList<ArrayList<T>>();
+	public DataTable() {}
+	
+	/**
+	 * Writes and reads the values held in a table's cells. Only distinct values are ever passed to a codec, never null, so a codec
+	 * can afford to be thorough.
+	 */
+	public interface CellCodec<T> {
+		public void write(T value, OutputStream out) throws IOException;
+		public T read(InputStream in) throws IOException;
 	}
 	
-	public int getWidth() {
-		int apparentWidth = 0;
-		for(ArrayList<T> row : data) {
-			if (row==null) continue;
-			apparentWidth = Math.max(apparentWidth, row.size());
+	/**
+	 * The codec every table starts with. It writes a one-byte kind and then the value, and handles Strings, boxed Integers, Longs,
+	 * Floats, Doubles and Booleans, and any Streamable registered with StreamableRegistry.getDefault().
+	 */
+	public static final CellCodec<Object> DEFAULT_CODEC = new CellCodec<Object>() {
+		private static final int STRING = 1;
+		private static final int INTEGER = 2;
+		private static final int LONG = 3;
+		private static final int FLOAT = 4;
+		private static final int DOUBLE = 5;
+		private static final int BOOLEAN = 6;
+		private static final int TAGGED = 7;
+		
+		@Override
+		public void write(Object value, OutputStream out) throws IOException {
+			if (value instanceof String) {
+				out.write(STRING);
+				Streamable.Helper.stringToStream((String)value, out);
+			} else if (value instanceof Integer) {
+				out.write(INTEGER);
+				Streamable.Helper.intToStream((Integer)value, out);
+			} else if (value instanceof Long) {
+				out.write(LONG);
+				Streamable.Helper.longToStream((Long)value, out);
+			} else if (value instanceof Float) {
+				out.write(FLOAT);
+				Streamable.Helper.floatToStream((Float)value, out);
+			} else if (value instanceof Double) {
+				out.write(DOUBLE);
+				Streamable.Helper.doubleToStream((Double)value, out);
+			} else if (value instanceof Boolean) {
+				out.write(BOOLEAN);
+				out.write(((Boolean)value) ? 1 : 0);
+			} else if (value instanceof Streamable) {
+				out.write(TAGGED);
+				StreamableRegistry.getDefault().writeTagged((Streamable)value, out);
+			} else {
+				throw new IllegalArgumentException("No way to write a "+value.getClass().getName()+"; give the table a CellCodec.");
+			}
 		}
-		return apparentWidth;
+		
+		@Override
+		public Object read(InputStream in) throws IOException {
+			int kind = in.read();
+			switch(kind) {
+			case STRING: return Streamable.Helper.stringFromStream(in);
+			case INTEGER: return Streamable.Helper.intFromStream(in);
+			case LONG: return Streamable.Helper.longFromStream(in);
+			case FLOAT: return Streamable.Helper.floatFromStream(in);
+			case DOUBLE: return Streamable.Helper.doubleFromStream(in);
+			case BOOLEAN: return in.read()==1;
+			case TAGGED: return StreamableRegistry.getDefault().readTagged(in);
+			default: throw new IOException("Unknown cell kind "+kind);
+			}
+		}
+	};
+	
+	@SuppressWarnings("unchecked")
+	private static <T> CellCodec<T> defaultCodec() {
+		return (CellCodec<T>)(CellCodec<?>)DEFAULT_CODEC;
+	}
+	
+	/** Sets how this table's values are written and read. Tables start with DEFAULT_CODEC. */
+	public void setCellCodec(CellCodec<T> codec) {
+		if (codec==null) throw new IllegalArgumentException("Codec cannot be null.");
+		this.codec = codec;
+	}
+	
+	public CellCodec<T> getCellCodec() {
+		return codec;
+	}
+	
+	@Override
+	public int getWidth() {
+		return width;
 	}
 	
-	public int getHeight() { return data.size(); }
+	@Override
+	public int getHeight() { return height; }
 	
+	@Override
+	@SuppressWarnings("unchecked")
 	public T get(int x, int y) {
 		if (x<0 | y<0) throw new IndexOutOfBoundsException();
-		if (y>=data.size()) return null;
-		ArrayList<T> row = data.get(y);
-		if (row==null) return null;
-		if (x>=row.size()) return null;
-		return row.get(x);
+		if (x>=width | y>=height) return null;
+		return (T)cells[y*stride+x];
 	}
 
 	public void set(int x, int y, T value) {
 		if (x<0 | y<0) throw new IndexOutOfBoundsException();
+		int oldWidth = width;
+		int oldHeight = height;
+		if (x>=width | y>=height) grow(x+1, y+1);
+		if (index!=null) reindex(x, y, cells[y*stride+x], value);
+		cells[y*stride+x] = value;
+		
+		if (x>=oldWidth) {
+			listeners.fireStructureChanged(); //new columns
+		} else if (y>=oldHeight) {
+			listeners.fireRowsInserted(oldHeight, y);
+		} else {
+			listeners.fireCellUpdated(y, x);
+		}
+	}
+	
+	/**
+	 * Copies row y into dest, starting at the left edge, for as much of the row as dest can hold or the table is wide. Cells past the
+	 * end of the table read as null.
+	 * @return dest
+	 */
+	public T[] getRow(int y, T[] dest) {
+		if (y<0) throw new IndexOutOfBoundsException();
+		int count = Math.min(dest.length, width);
+		if (y<height) {
+			System.arraycopy(cells, y*stride, dest, 0, count);
+		} else {
+			count = 0;
+		}
+		Arrays.fill(dest, count, dest.length, null);
+		return dest;
+	}
+	
+	/**
+	 * Sets cells x through x+values.length-1 of row y in one step, growing the table if need be, and notifies listeners once.
+	 */
+	public void setRow(int x, int y, T[] values) {
+		if (x<0 | y<0) throw new IndexOutOfBoundsException();
+		if (values.length==0) return;
+		int oldWidth = width;
+		int oldHeight = height;
+		int right = x+values.length;
+		if (right>width | y>=height) grow(right, y+1);
+		if (index!=null) {
+			for(int i=0; i<values.length; i++) reindex(x+i, y, cells[y*stride+x+i], values[i]);
+		}
+		System.arraycopy(values, 0, cells, y*stride+x, values.length);
 		
-		ArrayList<T> row;
-		if (y>=data.size()) {
-			while(data.size()<y+1) {
-				data.add(new ArrayList<T>());
+		if (right>oldWidth) {
+			listeners.fireStructureChanged();
+		} else if (y>=oldHeight) {
+			listeners.fireRowsInserted(oldHeight, y);
+		} else {
+			listeners.fireRowsUpdated(y, y);
+		}
+	}
+	
+	/**
+	 * Makes the table at least this wide and tall, reallocating if it doesn't fit. If rows need more room, every row is moved over
+	 * in one copy each; if only more rows are needed, the whole table is copied at once.
+	 */
+	private void grow(int minWidth, int minHeight) {
+		int newStride = stride;
+		int newRows = rowCapacity;
+		if (minWidth>stride) newStride = Math.max(minWidth, Math.max(MINIMUM_CAPACITY, stride*2));
+		if (minHeight>rowCapacity) newRows = Math.max(minHeight, Math.max(MINIMUM_CAPACITY, rowCapacity*2));
+		if (newStride!=stride || newRows!=rowCapacity) {
+			if ((long)newStride*newRows>MAX_ARRAY_SIZE) {
+				//Doubling overshot; try exactly what's needed before giving up.
+				if (newStride!=stride) newStride = minWidth;
+				if (newRows!=rowCapacity) newRows = minHeight;
+				if ((long)newStride*newRows>MAX_ARRAY_SIZE) throw new IllegalArgumentException("Table can't grow to "+minWidth+" x "+minHeight);
+			}
+			if (newStride==stride) {
+				cells = Arrays.copyOf(cells, newStride*newRows);
+			} else {
+				Object[] newCells = new Object[newStride*newRows];
+				for(int y=0; y<height; y++) System.arraycopy(cells, y*stride, newCells, y*newStride, width);
+				cells = newCells;
 			}
-			row = new ArrayList<T>(x+1);
-			data.set(y, row);
-		} else row = data.get(y);
-		if (x>=row.size()) row.ensureCapacity(x+1);
-		while(row.size()<x+1) row.add(null);
-		row.set(x, value);
+			stride = newStride;
+			rowCapacity = newRows;
+		}
+		width = Math.max(width, minWidth);
+		height = Math.max(height, minHeight);
 	}
 	
 	@Override
 	public void addTableModelListener(TableModelListener l) {
-		listeners.add(l);
+		listeners.addTableModelListener(l);
 	}
 
 	@Override
@@ -87,7 +267,7 @@ public class DataTable<T> implements TableModel {
 
 	@Override
 	public void removeTableModelListener(TableModelListener l) {
-		listeners.remove(l);
+		listeners.removeTableModelListener(l);
 	}
 
 	@Override
@@ -101,10 +281,281 @@ public class DataTable<T> implements TableModel {
 		}
 	}
 	
+	@Override
+	public boolean put(T e, int x, int y) {
+		set(x, y, e);
+		return true;
+	}
+	
+	/**
+	 * Turns the value index on or off. An indexed table keeps track of where every value is, so contains answers straight away
+	 * instead of searching, and forEachPositionOf finds a value's cells without looking at any others. The index costs memory for
+	 * every cell in use, so it suits tables with few distinct values, such as tilemaps, better than ones where every cell differs.
+	 */
+	public void setIndexed(boolean indexed) {
+		if (!indexed) {
+			index = null;
+			indexedCount = 0;
+			return;
+		}
+		if (index!=null) return;
+		index = new HashMap<Object, LongHashMap<Boolean>>();
+		for(int y=0; y<height; y++) {
+			for(int x=0; x<width; x++) reindex(x, y, null, cells[y*stride+x]);
+		}
+	}
+	
+	public boolean isIndexed() {
+		return index!=null;
+	}
+	
+	/** Updates the index for cell x,y changing from oldValue to newValue. */
+	private void reindex(int x, int y, Object oldValue, Object newValue) {
+		long position = ((long)x << 32) | (y & 0xFFFFFFFFL);
+		if (oldValue!=null) {
+			LongHashMap<Boolean> positions = index.get(oldValue);
+			positions.remove(position);
+			if (positions.size()==0) index.remove(oldValue);
+			indexedCount--;
+		}
+		if (newValue!=null) {
+			LongHashMap<Boolean> positions = index.get(newValue);
+			if (positions==null) {
+				positions = new LongHashMap<Boolean>();
+				index.put(newValue, positions);
+			}
+			positions.put(position, Boolean.TRUE);
+			indexedCount++;
+		}
+	}
+	
+	/**
+	 * Visits every cell holding value, in no particular order. Uses the index if there is one, and otherwise searches the table.
+	 */
+	public void forEachPositionOf(Object value, CellVisitor<? super T> visitor) {
+		if (index!=null && value!=null) {
+			LongHashMap<Boolean> positions = index.get(value);
+			if (positions==null) return;
+			for(int slot=0; slot<positions.capacity(); slot++) {
+				if (positions.valueAt(slot)==null) continue;
+				long position = positions.keyAt(slot);
+				int x = (int)(position >> 32);
+				int y = (int)position;
+				visitor.visit(x, y, get(x, y));
+			}
+			return;
+		}
+		for(int y=0; y<height; y++) {
+			for(int x=0; x<width; x++) {
+				Object cell = cells[y*stride+x];
+				if (value==null ? cell==null : value.equals(cell)) visitor.visit(x, y, get(x, y));
+			}
+		}
+	}
+	
+	/**
+	 * Visits every cell of the rectangle with its top left corner at x,y which lies inside the table, including ones which were
+	 * never set.
+	 */
+	@Override
+	public void forEachIn(int x, int y, int width, int height, CellVisitor<? super T> visitor) {
+		int minX = Math.max(x, 0);
+		int maxX = (int)Math.min((long)x+width, this.width);
+		int maxY = (int)Math.min((long)y+height, this.height);
+		for(int row=Math.max(y, 0); row<maxY; row++) {
+			int rowStart = row*stride;
+			for(int column=minX; column<maxX; column++) {
+				@SuppressWarnings("unchecked")
+				T value = (T)cells[rowStart+column];
+				visitor.visit(column, row, value);
+			}
+		}
+	}
+	
+	/**
+	 * Sets every cell of the rectangle with its top left corner at x,y to value, growing the table to fit, and notifies listeners
+	 * once.
+	 */
+	public void fill(int x, int y, int width, int height, T value) {
+		if (x<0 | y<0) throw new IndexOutOfBoundsException();
+		if (width<=0 | height<=0) return;
+		int oldWidth = this.width;
+		int oldHeight = this.height;
+		int right = x+width;
+		int bottom = y+height;
+		if (right>this.width | bottom>this.height) grow(right, bottom);
+		for(int row=y; row<bottom; row++) {
+			int rowStart = row*stride;
+			if (index!=null) {
+				for(int column=x; column<right; column++) reindex(column, row, cells[rowStart+column], value);
+			}
+			Arrays.fill(cells, rowStart+x, rowStart+right, value);
+		}
+		
+		if (right>oldWidth) {
+			listeners.fireStructureChanged();
+		} else if (bottom>oldHeight) {
+			listeners.fireTableChanged();
+		} else {
+			listeners.fireRowsUpdated(y, bottom-1);
+		}
+	}
+	
+	/**
+	 * If the table is indexed, answers straight from the index; otherwise searches every cell.
+	 */
+	@Override
+	public boolean contains(Object o) {
+		if (index!=null) {
+			if (o==null) return indexedCount<(long)width*height;
+			return index.containsKey(o);
+		}
+		for(int y=0; y<height; y++) {
+			int rowStart = y*stride;
+			for(int i=rowStart; i<rowStart+width; i++) {
+				if (o==null ? cells[i]==null : o.equals(cells[i])) return true;
+			}
+		}
+		return false;
+	}
+	
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		for(Object o : c) {
+			if (!contains(o)) return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean containsAll(Collection2D<?> c) {
+		for(int y=0; y<c.getHeight(); y++) {
+			for(int x=0; x<c.getWidth(); x++) {
+				if (!contains(c.get(x, y))) return false;
+			}
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return height==0;
+	}
+	
 	/**
 	 * Removes all elements from this collection.
 	 */
+	@Override
 	public void clear() {
-		data.clear();
+		if (height==0) return;
+		//Keep the space for reuse, but let go of everything in it.
+		Arrays.fill(cells, 0, height*stride, null);
+		if (index!=null) {
+			index.clear();
+			indexedCount = 0;
+		}
+		width = 0;
+		height = 0;
+		listeners.fireStructureChanged();
+	}
+	
+	/**
+	 * Writes the table as its width and height, a palette of its distinct values, and one run-length encoded frame per row of
+	 * indices into the palette, where index 0 is null.
+	 */
+	@Override
+	public void streamTo(OutputStream out) throws IOException {
+		HashMap<Object,Integer> indices = new HashMap<Object,Integer>();
+		ArrayList<Object> palette = new ArrayList<Object>();
+		for(int y=0; y<height; y++) {
+			int rowStart = y*stride;
+			for(int x=0; x<width; x++) {
+				Object cell = cells[rowStart+x];
+				if (cell==null || (x>0 && cell==cells[rowStart+x-1])) continue;
+				if (indices.containsKey(cell)) continue;
+				palette.add(cell);
+				indices.put(cell, palette.size());
+			}
+		}
+		
+		Streamable.Helper.varIntToStream(width, out);
+		Streamable.Helper.varIntToStream(height, out);
+		Streamable.Helper.varIntToStream(palette.size(), out);
+		for(Object value : palette) {
+			@SuppressWarnings("unchecked")
+			T cell = (T)value;
+			codec.write(cell, out);
+		}
+		
+		GridCodec rowCodec = new GridCodec();
+		int[] row = new int[width];
+		for(int y=0; y<height; y++) {
+			int rowStart = y*stride;
+			Object last = null;
+			int lastIndex = 0;
+			for(int x=0; x<width; x++) {
+				Object cell = cells[rowStart+x];
+				if (cell!=last) {
+					last = cell;
+					lastIndex = (cell==null) ? 0 : indices.get(cell);
+				}
+				row[x] = lastIndex;
+			}
+			rowCodec.writeRow(row, width, false, out);
+		}
+	}
+	
+	/**
+	 * Replaces the whole contents of the table with a table read from the stream, keeping its listeners, codec, and whether it's
+	 * indexed. Listeners hear about it once, as a structure change.
+	 */
+	@Override
+	public void streamFrom(InputStream in) throws IOException {
+		int newWidth = GridCodec.readCount(in);
+		int newHeight = GridCodec.readCount(in);
+		if ((long)newWidth*newHeight>MAX_ARRAY_SIZE) throw new IOException("Table is too large: "+newWidth+" x "+newHeight);
+		int paletteSize = GridCodec.readCount(in);
+		Object[] palette = new Object[paletteSize+1];
+		for(int i=1; i<=paletteSize; i++) palette[i] = codec.read(in);
+		
+		Object[] newCells = new Object[newWidth*newHeight];
+		GridCodec rowCodec = new GridCodec();
+		int[] row = new int[newWidth];
+		for(int y=0; y<newHeight; y++) {
+			rowCodec.readRow(in, row, newWidth, false);
+			int rowStart = y*newWidth;
+			for(int x=0; x<newWidth; x++) {
+				if (row[x]<0 | row[x]>paletteSize) throw new IOException("Palette index "+row[x]+" out of range in row "+y);
+				newCells[rowStart+x] = palette[row[x]];
+			}
+		}
+		
+		cells = newCells;
+		stride = newWidth;
+		rowCapacity = newHeight;
+		width = (newHeight==0) ? 0 : newWidth;
+		height = (newWidth==0) ? 0 : newHeight;
+		if (index!=null) {
+			index = null;
+			setIndexed(true);
+		}
+		listeners.fireStructureChanged();
+	}
+	
+	/**
+	 * Copies the table's cells, trimmed to size, into a new table with the same codec. The values themselves are shared, so this
+	 * is only a true snapshot if they're immutable, as tile ids and Strings are.
+	 */
+	@Override
+	public Streamable captureSnapshot() {
+		DataTable<T> copy = new DataTable<T>();
+		copy.codec = codec;
+		copy.cells = new Object[width*height];
+		for(int y=0; y<height; y++) System.arraycopy(cells, y*stride, copy.cells, y*width, width);
+		copy.stride = width;
+		copy.rowCapacity = height;
+		copy.width = width;
+		copy.height = height;
+		return copy;
 	}
 }
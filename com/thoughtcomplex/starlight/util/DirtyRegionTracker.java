@@ -0,0 +1,263 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.util.Arrays;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import javax.swing.table.TableModel;
+
+/**
+ * Keeps track of which parts of a grid have changed, so that renderers, network sync and the like can deal with just those parts
+ * instead of the whole grid. The grid is divided into chunks of a size chosen up front, and a chunk is either dirty or clean; a
+ * consumer polls drainDirty, say once a frame, and is handed the dirty chunks merged into as few rectangles as it can manage, which
+ * also marks them clean again.
+ *
+ * <p>Changes can be marked by hand, or the tracker can be added as a TableModelListener to a DataTable, a Collection2DTableModel, or
+ * any other TableModel whose columns are x and rows are y, in which case every event it fires marks the cells it names. Whole-table
+ * events mark everything, out to the largest size the model has been seen at, so cells which have just disappeared are redrawn too.
+ *
+ * <p>The dirty bits are kept sparsely, 64 chunks of a row to a word, so marking a cell is a hash lookup and an OR, and draining
+ * costs time in proportion to what's dirty, not to the size of the grid. Cells may be anywhere, negative coordinates included.
+ * Marking and draining may happen on different threads.
+ */
+public class DirtyRegionTracker implements TableModelListener {
+	private final int chunkWidth;
+	private final int chunkHeight;
+	/** Each word of dirty bits, keyed by wordKey. Words stay in the map once created, and are zeroed when drained. */
+	private final LongHashMap<long[]> words = new LongHashMap<long[]>();
+	/** The keys of the words with any bits set. */
+	private long[] dirtyKeys = new long[16];
+	private int dirtyKeyCount = 0;
+	/** The largest size seen from a TableModel, for whole-table events. */
+	private int modelWidth = 0;
+	private int modelHeight = 0;
+
+	/* Scratch space for coalescing, kept between drains. */
+	private int[] spans = new int[16];
+	private int[] open = new int[24];
+	private int[] nextOpen = new int[24];
+	private int[] regions = new int[32];
+
+	/**
+	 * Receives dirty rectangles from drainDirty, in cells. The rectangles never overlap, and cover whole chunks, so they may run
+	 * past the edges of the grid.
+	 */
+	public interface RegionVisitor {
+		public void visit(int x, int y, int width, int height);
+	}
+
+	/** Creates a tracker with square chunks. */
+	public DirtyRegionTracker(int chunkSize) {
+		this(chunkSize, chunkSize);
+	}
+
+	public DirtyRegionTracker(int chunkWidth, int chunkHeight) {
+		if (chunkWidth<=0 | chunkHeight<=0) throw new IllegalArgumentException("Chunks must be at least one cell across.");
+		this.chunkWidth = chunkWidth;
+		this.chunkHeight = chunkHeight;
+	}
+
+	public int getChunkWidth() {
+		return chunkWidth;
+	}
+
+	public int getChunkHeight() {
+		return chunkHeight;
+	}
+
+	/** Marks the chunk containing cell x,y as dirty. */
+	public synchronized void markDirty(int x, int y) {
+		int chunkX = Math.floorDiv(x, chunkWidth);
+		markChunks(chunkX, chunkX, Math.floorDiv(y, chunkHeight), Math.floorDiv(y, chunkHeight));
+	}
+
+	/** Marks every chunk touching the rectangle with its top left corner at x,y as dirty. */
+	public synchronized void markDirty(int x, int y, int width, int height) {
+		if (width<=0 | height<=0) return;
+		int right = (int)Math.min((long)x+width-1, Integer.MAX_VALUE);
+		int bottom = (int)Math.min((long)y+height-1, Integer.MAX_VALUE);
+		markChunks(Math.floorDiv(x, chunkWidth), Math.floorDiv(right, chunkWidth), Math.floorDiv(y, chunkHeight), Math.floorDiv(bottom, chunkHeight));
+	}
+
+	/** Returns true if anything has been marked since the last drain. */
+	public synchronized boolean isDirty() {
+		return dirtyKeyCount>0;
+	}
+
+	/** Marks everything clean without visiting it. */
+	public synchronized void clearDirty() {
+		for(int i=0; i<dirtyKeyCount; i++) words.get(dirtyKeys[i])[0] = 0L;
+		dirtyKeyCount = 0;
+	}
+
+	/**
+	 * Hands every dirty region to the visitor, as rectangles merged across neighbouring chunks, and marks them clean. The visitor is
+	 * called after the tracker lets go of its lock, so it may mark things dirty again, for the next drain.
+	 */
+	public void drainDirty(RegionVisitor visitor) {
+		int[] drained;
+		int count;
+		synchronized(this) {
+			if (dirtyKeyCount==0) return;
+			count = coalesce();
+			clearDirty();
+			drained = regions;
+			regions = new int[0]; //so that a drain on another thread doesn't overwrite these while they're being visited
+		}
+		try {
+			for(int i=0; i<count; i+=4) visitor.visit(drained[i], drained[i+1], drained[i+2], drained[i+3]);
+		} finally {
+			synchronized(this) {
+				if (regions.length<drained.length) regions = drained;
+			}
+		}
+	}
+
+	/* TableModelListener */
+
+	@Override
+	public void tableChanged(TableModelEvent e) {
+		if (!(e.getSource() instanceof TableModel)) return;
+		TableModel model = (TableModel)e.getSource();
+		int columns = model.getColumnCount();
+		int rows = model.getRowCount();
+		synchronized(this) {
+			int widest = Math.max(columns, modelWidth);
+			int tallest = Math.max(rows, modelHeight);
+			modelWidth = widest;
+			modelHeight = tallest;
+
+			int first = e.getFirstRow();
+			int last = e.getLastRow();
+			if (first==TableModelEvent.HEADER_ROW || last==Integer.MAX_VALUE) {
+				markDirty(0, 0, widest, tallest);
+			} else if (e.getType()!=TableModelEvent.UPDATE) {
+				//Every row from the first inserted or deleted one down has moved.
+				markDirty(0, first, widest, tallest-first);
+			} else if (e.getColumn()==TableModelEvent.ALL_COLUMNS) {
+				markDirty(0, first, widest, last-first+1);
+			} else {
+				markDirty(e.getColumn(), first, 1, last-first+1);
+			}
+		}
+	}
+
+	/* Bits */
+
+	/**
+	 * Packs a chunk row and the index of a word within it into a key which sorts by row and then by word, even when they're
+	 * negative.
+	 */
+	private static long wordKey(int chunkY, int wordX) {
+		return ((long)chunkY << 32) | ((wordX ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+	}
+
+	private static int wordXOf(long key) {
+		return (int)key ^ Integer.MIN_VALUE;
+	}
+
+	/** Sets the bits for chunks minX through maxX of rows minY through maxY, inclusive. */
+	private void markChunks(int minX, int maxX, int minY, int maxY) {
+		int firstWord = minX >> 6;
+		int lastWord = maxX >> 6;
+		for(int chunkY=minY; chunkY<=maxY; chunkY++) {
+			for(int wordX=firstWord; wordX<=lastWord; wordX++) {
+				long mask = -1L;
+				if (wordX==firstWord) mask &= -1L << (minX & 63);
+				if (wordX==lastWord) mask &= -1L >>> (63-(maxX & 63));
+				long key = wordKey(chunkY, wordX);
+				long[] word = words.get(key);
+				if (word==null) {
+					word = new long[1];
+					words.put(key, word);
+				}
+				if (word[0]==0L) {
+					if (dirtyKeyCount==dirtyKeys.length) dirtyKeys = Arrays.copyOf(dirtyKeys, dirtyKeyCount*2);
+					dirtyKeys[dirtyKeyCount++] = key;
+				}
+				word[0] |= mask;
+			}
+			if (chunkY==Integer.MAX_VALUE) break;
+		}
+	}
+
+	/* Coalescing */
+
+	/**
+	 * Turns the dirty bits into rectangles in the regions array, four ints each, and returns how many ints were used. Runs of dirty
+	 * chunks along each row become spans, and a span exactly below one in the row before extends that rectangle downwards.
+	 */
+	private int coalesce() {
+		Arrays.sort(dirtyKeys, 0, dirtyKeyCount);
+		int regionCount = 0;
+		int openCount = 0; //three ints each: first chunk x, last-plus-one chunk x, first chunk y
+		int previousRow = 0;
+
+		int i = 0;
+		while(i<dirtyKeyCount) {
+			//Gather this row's spans, two ints each, in order
+			int chunkY = (int)(dirtyKeys[i] >> 32);
+			int spanCount = 0;
+			for(; i<dirtyKeyCount && (int)(dirtyKeys[i] >> 32)==chunkY; i++) {
+				long bits = words.get(dirtyKeys[i])[0];
+				long base = (long)wordXOf(dirtyKeys[i]) << 6;
+				while(bits!=0L) {
+					int start = Long.numberOfTrailingZeros(bits);
+					int length = Long.numberOfTrailingZeros(~(bits >>> start));
+					int spanStart = (int)(base+start);
+					int spanEnd = (int)Math.min(base+start+length, Integer.MAX_VALUE);
+					if (spanCount>0 && spans[spanCount-1]==spanStart) {
+						spans[spanCount-1] = spanEnd;
+					} else {
+						if (spanCount+2>spans.length) spans = Arrays.copyOf(spans, spans.length*2);
+						spans[spanCount++] = spanStart;
+						spans[spanCount++] = spanEnd;
+					}
+					bits = (start+length==64) ? 0L : bits & (-1L << (start+length));
+				}
+			}
+
+			//Match them up with the rectangles still open from the row above. Both lists are sorted and don't overlap.
+			boolean adjacent = openCount>0 && (long)chunkY==(long)previousRow+1;
+			int nextCount = 0;
+			int o = 0;
+			for(int s=0; s<spanCount; s+=2) {
+				int y = chunkY;
+				if (adjacent) {
+					while(o<openCount && open[o]<spans[s]) {
+						regionCount = emit(open[o], open[o+1], open[o+2], chunkY, regionCount);
+						o += 3;
+					}
+					if (o<openCount && open[o]==spans[s] && open[o+1]==spans[s+1]) {
+						y = open[o+2];
+						o += 3;
+					}
+				}
+				if (nextCount+3>nextOpen.length) nextOpen = Arrays.copyOf(nextOpen, nextOpen.length*2);
+				nextOpen[nextCount++] = spans[s];
+				nextOpen[nextCount++] = spans[s+1];
+				nextOpen[nextCount++] = y;
+			}
+			int closeAt = (adjacent) ? chunkY : previousRow+1;
+			for(; o<openCount; o+=3) regionCount = emit(open[o], open[o+1], open[o+2], closeAt, regionCount);
+
+			int[] swap = open;
+			open = nextOpen;
+			nextOpen = swap;
+			openCount = nextCount;
+			previousRow = chunkY;
+		}
+		for(int o=0; o<openCount; o+=3) regionCount = emit(open[o], open[o+1], open[o+2], previousRow+1, regionCount);
+		return regionCount;
+	}
+
+	/** Adds a rectangle of chunks minX to maxX and minY to maxY, exclusive, to the regions array, in cells. */
+	private int emit(int minX, int maxX, int minY, int maxY, int regionCount) {
+		if (regionCount+4>regions.length) regions = Arrays.copyOf(regions, Math.max(32, regions.length*2));
+		regions[regionCount++] = minX*chunkWidth;
+		regions[regionCount++] = minY*chunkHeight;
+		regions[regionCount++] = (maxX-minX)*chunkWidth;
+		regions[regionCount++] = (maxY-minY)*chunkHeight;
+		return regionCount;
+	}
+}
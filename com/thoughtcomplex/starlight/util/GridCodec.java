@@ -0,0 +1,221 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The run-length encoding shared by the grid formats. A grid is written as its width and height, a palette, and then one frame per
+ * row. Each frame is its length in bytes followed by spans of cells. A span starts with a variable-length int holding its length
+ * and, in the low bit, whether it's a run: a run is one value repeated, so a row of one tile is a couple of bytes however wide it
+ * is, and any other span lists its values one after another. Frames never refer to each other, so any row can be decoded, or
+ * skipped over, on its own once the palette has been read.
+ *
+ * <p>Where there's a palette, the values are indices into it, written as variable-length ints. Without one, which only happens
+ * when there are thousands of distinct values and most of them are large, the values are written as plain four-byte ints.
+ *
+ * <p>A codec holds the scratch space for one frame, so reuse one for every row of a grid, but don't share it between threads.
+ */
+final class GridCodec {
+	/** Grids with more distinct values than this are written without a palette, since the indices would save little. */
+	static final int MAX_PALETTE = 1 << 12;
+
+	private byte[] frame = new byte[64];
+	private int length = 0;
+	/** How far into the frame readRow has got. */
+	private int position = 0;
+
+	/** Supplies the rows of an int-valued grid to write. */
+	interface IntRows {
+		/** Fills dest with the cells of row y. Floats are passed as their raw int bits. */
+		public void getRow(int y, int[] dest);
+	}
+
+	/** Receives the rows of an int-valued grid as it's read. */
+	interface IntGridTarget<G> {
+		public G create(int width, int height);
+		public void setRow(G grid, int y, int[] row);
+	}
+
+	/* Whole int-valued grids */
+
+	/**
+	 * Writes a grid of ints: varint width and height, then the palette as a varint count and that many ints (a count of zero means
+	 * there's no palette, because there were too many distinct values, or no cells at all), then the rows.
+	 */
+	static void writeInts(int width, int height, IntRows rows, OutputStream out) throws IOException {
+		int[] row = new int[width];
+
+		//Gather the palette in order of first appearance, giving up if it gets too big to be worth having.
+		LongHashMap<Integer> indices = new LongHashMap<Integer>();
+		int[] palette = new int[16];
+		int paletteSize = 0;
+		findPalette:
+		for(int y=0; y<height; y++) {
+			rows.getRow(y, row);
+			for(int x=0; x<width; x++) {
+				if (x>0 && row[x]==row[x-1]) continue;
+				if (indices.get(row[x])!=null) continue;
+				if (paletteSize==MAX_PALETTE) {
+					paletteSize = 0;
+					indices = null;
+					break findPalette;
+				}
+				if (paletteSize==palette.length) palette = Arrays.copyOf(palette, paletteSize*2);
+				palette[paletteSize] = row[x];
+				indices.put(row[x], paletteSize);
+				paletteSize++;
+			}
+		}
+
+		Streamable.Helper.varIntToStream(width, out);
+		Streamable.Helper.varIntToStream(height, out);
+		Streamable.Helper.varIntToStream(paletteSize, out);
+		for(int i=0; i<paletteSize; i++) Streamable.Helper.intToStream(palette[i], out);
+
+		GridCodec codec = new GridCodec();
+		for(int y=0; y<height; y++) {
+			rows.getRow(y, row);
+			if (indices!=null) {
+				for(int x=0; x<width; x++) row[x] = indices.get(row[x]);
+			}
+			codec.writeRow(row, width, indices==null, out);
+		}
+	}
+
+	/**
+	 * Reads a grid written by writeInts, creating it through target and handing it each row in turn.
+	 */
+	static <G> G readInts(InputStream in, IntGridTarget<G> target) throws IOException {
+		int width = readCount(in);
+		int height = readCount(in);
+		int paletteSize = readCount(in);
+		int[] palette = new int[paletteSize];
+		for(int i=0; i<paletteSize; i++) palette[i] = Streamable.Helper.intFromStream(in);
+
+		G grid = target.create(width, height);
+		GridCodec codec = new GridCodec();
+		int[] row = new int[width];
+		for(int y=0; y<height; y++) {
+			codec.readRow(in, row, width, paletteSize==0);
+			if (paletteSize>0) {
+				for(int x=0; x<width; x++) {
+					if (row[x]<0 | row[x]>=paletteSize) throw new IOException("Palette index "+row[x]+" out of range in row "+y);
+					row[x] = palette[row[x]];
+				}
+			}
+			target.setRow(grid, y, row);
+		}
+		return grid;
+	}
+
+	/** Reads a varint count or dimension, which must not be negative. */
+	static int readCount(InputStream in) throws IOException {
+		int result = Streamable.Helper.varIntFromStream(in);
+		if (result<0) throw new EOFException("Stream ended in the middle of a grid.");
+		return result;
+	}
+
+	/* Frames */
+
+	/**
+	 * Encodes the first width values of row and writes them out as one frame. If direct, the values are written as four-byte ints
+	 * rather than as palette indices.
+	 */
+	void writeRow(int[] row, int width, boolean direct, OutputStream out) throws IOException {
+		length = 0;
+		int x = 0;
+		while(x<width) {
+			int run = 1;
+			while(x+run<width && row[x+run]==row[x]) run++;
+			if (run>1) {
+				putVarInt((run << 1) | 1);
+				putValue(row[x], direct);
+				x += run;
+				continue;
+			}
+			//Gather cells up to the start of the next run
+			int end = x+1;
+			while(end<width && (end+1==width || row[end+1]!=row[end])) end++;
+			putVarInt((end-x) << 1);
+			for(int i=x; i<end; i++) putValue(row[i], direct);
+			x = end;
+		}
+		Streamable.Helper.varIntToStream(length, out);
+		out.write(frame, 0, length);
+	}
+
+	/**
+	 * Reads one frame and decodes exactly width values from it into row.
+	 * @throws IOException		Thrown if the stream ends early, or the frame doesn't hold exactly width values.
+	 */
+	void readRow(InputStream in, int[] row, int width, boolean direct) throws IOException {
+		int frameLength = readCount(in);
+		if (frame.length<frameLength) frame = new byte[Math.max(frameLength, frame.length*2)];
+		int total = 0;
+		while(total<frameLength) {
+			int read = in.read(frame, total, frameLength-total);
+			if (read<0) throw new EOFException("Stream ended in the middle of a grid row.");
+			total += read;
+		}
+		length = frameLength;
+
+		position = 0;
+		int x = 0;
+		while(x<width) {
+			if (position>=length) throw new IOException("Grid row is shorter than the grid is wide.");
+			int header = getVarInt();
+			int count = header >>> 1;
+			if (count<=0 | count>width-x) throw new IOException("Grid row is longer than the grid is wide.");
+			if ((header & 1)!=0) {
+				Arrays.fill(row, x, x+count, getValue(direct));
+			} else {
+				for(int i=x; i<x+count; i++) row[i] = getValue(direct);
+			}
+			x += count;
+		}
+		if (position!=length) throw new IOException("Grid row is longer than the grid is wide.");
+	}
+
+	private void putValue(int value, boolean direct) {
+		if (!direct) {
+			putVarInt(value);
+			return;
+		}
+		if (frame.length-length<4) frame = Arrays.copyOf(frame, frame.length*2);
+		frame[length++] = (byte)(value >> 24);
+		frame[length++] = (byte)(value >> 16);
+		frame[length++] = (byte)(value >> 8);
+		frame[length++] = (byte)value;
+	}
+
+	private void putVarInt(int value) {
+		if (frame.length-length<5) frame = Arrays.copyOf(frame, frame.length*2);
+		while((value & ~0x7F)!=0) {
+			frame[length++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		frame[length++] = (byte)value;
+	}
+
+	private int getValue(boolean direct) throws IOException {
+		if (!direct) return getVarInt();
+		if (length-position<4) throw new IOException("Grid row ends in the middle of a value.");
+		int result = ((frame[position] & 0xFF) << 24) | ((frame[position+1] & 0xFF) << 16) | ((frame[position+2] & 0xFF) << 8) | (frame[position+3] & 0xFF);
+		position += 4;
+		return result;
+	}
+
+	private int getVarInt() throws IOException {
+		int result = 0;
+		for(int shift=0; shift<35; shift+=7) {
+			if (position>=length) throw new IOException("Grid row ends in the middle of a value.");
+			int b = frame[position++];
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80)==0) return result;
+		}
+		throw new IOException("Malformed variable-length int");
+	}
+}
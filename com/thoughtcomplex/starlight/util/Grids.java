@@ -0,0 +1,351 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Bulk operations between grids: copying a rectangle from one grid into another, and blitting, which is copying everything but a
+ * transparent value. Rectangles are clipped to both grids, so a sprite can be blitted half off the edge of a map. A grid can be
+ * copied onto itself, and overlapping rectangles come out as if the source had been copied somewhere else first.
+ *
+ * <p>The primitive grids are copied a row at a time with System.arraycopy, and nothing allocates.
+ *
+ * <p>The primitive grids are also streamed from here, since their size is fixed when they're created and so they can't read
+ * themselves in the way a Streamable does. Each distinct value goes into a palette once, and each row is written as runs of palette
+ * indices in a frame of its own; a typical tilemap shrinks to a few bytes per row. Grids with too many distinct values to be worth
+ * a palette, such as noise, are run-length encoded as they are.
+ */
+public final class Grids {
+	private Grids() {}
+
+	/* Clipping. For one axis, returns the first and last-plus-one offsets into the rectangle which fall inside both grids. */
+
+	private static int clipStart(int src, int dest) {
+		return Math.max(0, Math.max(-src, -dest));
+	}
+
+	private static int clipEnd(int length, int src, int srcSize, int dest, int destSize) {
+		return (int)Math.min(length, Math.min((long)srcSize-src, (long)destSize-dest));
+	}
+
+	/** Grids which grow to fit, like DataTable and ChunkedGrid, are treated as having no far edge. */
+	private static int widthOf(Collection2D<?> grid) {
+		return isFixedSize(grid) ? grid.getWidth() : Integer.MAX_VALUE;
+	}
+
+	private static int heightOf(Collection2D<?> grid) {
+		return isFixedSize(grid) ? grid.getHeight() : Integer.MAX_VALUE;
+	}
+
+	private static boolean isFixedSize(Collection2D<?> grid) {
+		return grid instanceof AbstractGrid || grid instanceof MappedGrid;
+	}
+
+	/**
+	 * Copies a width by height rectangle from src, with its top left corner at srcX,srcY, into dest at destX,destY. Works for any
+	 * pair of grids, one cell at a time; grids which grow to fit grow as needed.
+	 */
+	public static <E> void copyRegion(Collection2D<? extends E> src, int srcX, int srcY,
+			Collection2D<? super E> dest, int destX, int destY, int width, int height) {
+		copy(src, srcX, srcY, dest, destX, destY, width, height, false);
+	}
+
+	/**
+	 * Like copyRegion, but leaves alone any cell of dest where src has null.
+	 */
+	public static <E> void blit(Collection2D<? extends E> src, int srcX, int srcY,
+			Collection2D<? super E> dest, int destX, int destY, int width, int height) {
+		copy(src, srcX, srcY, dest, destX, destY, width, height, true);
+	}
+
+	private static <E> void copy(Collection2D<? extends E> src, int srcX, int srcY,
+			Collection2D<? super E> dest, int destX, int destY, int width, int height, boolean skipNulls) {
+		int startX = clipStart(srcX, destX);
+		int endX = clipEnd(width, srcX, src.getWidth(), destX, widthOf(dest));
+		int startY = clipStart(srcY, destY);
+		int endY = clipEnd(height, srcY, src.getHeight(), destY, heightOf(dest));
+		if (startX>=endX | startY>=endY) return;
+		//When a grid is copied onto itself, work away from the direction of travel so nothing is overwritten before it's read.
+		boolean backwardY = src==dest && destY>srcY;
+		boolean backwardX = src==dest && destX>srcX;
+		for(int i=startY; i<endY; i++) {
+			int y = (backwardY) ? endY-1-(i-startY) : i;
+			for(int j=startX; j<endX; j++) {
+				int x = (backwardX) ? endX-1-(j-startX) : j;
+				E value = src.get(srcX+x, srcY+y);
+				if (skipNulls && value==null) continue;
+				dest.put(value, destX+x, destY+y);
+			}
+		}
+	}
+
+	/**
+	 * Copies a width by height rectangle from src, with its top left corner at srcX,srcY, into dest at destX,destY.
+	 */
+	public static void copyRegion(IntGrid src, int srcX, int srcY, IntGrid dest, int destX, int destY, int width, int height) {
+		int startX = clipStart(srcX, destX);
+		int endX = clipEnd(width, srcX, src.width, destX, dest.width);
+		int startY = clipStart(srcY, destY);
+		int endY = clipEnd(height, srcY, src.height, destY, dest.height);
+		if (startX>=endX | startY>=endY) return;
+		boolean backwardY = src==dest && destY>srcY;
+		for(int i=startY; i<endY; i++) {
+			int y = (backwardY) ? endY-1-(i-startY) : i;
+			System.arraycopy(src.cells, (srcY+y)*src.width+srcX+startX, dest.cells, (destY+y)*dest.width+destX+startX, endX-startX);
+		}
+	}
+
+	/**
+	 * Like copyRegion, but leaves alone any cell of dest where src holds the transparent value.
+	 */
+	public static void blit(IntGrid src, int srcX, int srcY, IntGrid dest, int destX, int destY, int width, int height, int transparent) {
+		int startX = clipStart(srcX, destX);
+		int endX = clipEnd(width, srcX, src.width, destX, dest.width);
+		int startY = clipStart(srcY, destY);
+		int endY = clipEnd(height, srcY, src.height, destY, dest.height);
+		if (startX>=endX | startY>=endY) return;
+		boolean backwardY = src==dest && destY>srcY;
+		boolean backwardX = src==dest && destX>srcX;
+		int[] from = src.cells;
+		int[] to = dest.cells;
+		for(int i=startY; i<endY; i++) {
+			int y = (backwardY) ? endY-1-(i-startY) : i;
+			int srcRow = (srcY+y)*src.width+srcX;
+			int destRow = (destY+y)*dest.width+destX;
+			for(int j=startX; j<endX; j++) {
+				int x = (backwardX) ? endX-1-(j-startX) : j;
+				int value = from[srcRow+x];
+				if (value==transparent) continue;
+				to[destRow+x] = value;
+			}
+		}
+	}
+
+	/**
+	 * Copies a width by height rectangle from src, with its top left corner at srcX,srcY, into dest at destX,destY.
+	 */
+	public static void copyRegion(ShortGrid src, int srcX, int srcY, ShortGrid dest, int destX, int destY, int width, int height) {
+		int startX = clipStart(srcX, destX);
+		int endX = clipEnd(width, srcX, src.width, destX, dest.width);
+		int startY = clipStart(srcY, destY);
+		int endY = clipEnd(height, srcY, src.height, destY, dest.height);
+		if (startX>=endX | startY>=endY) return;
+		boolean backwardY = src==dest && destY>srcY;
+		for(int i=startY; i<endY; i++) {
+			int y = (backwardY) ? endY-1-(i-startY) : i;
+			System.arraycopy(src.cells, (srcY+y)*src.width+srcX+startX, dest.cells, (destY+y)*dest.width+destX+startX, endX-startX);
+		}
+	}
+
+	/**
+	 * Like copyRegion, but leaves alone any cell of dest where src holds the transparent value.
+	 */
+	public static void blit(ShortGrid src, int srcX, int srcY, ShortGrid dest, int destX, int destY, int width, int height, short transparent) {
+		int startX = clipStart(srcX, destX);
+		int endX = clipEnd(width, srcX, src.width, destX, dest.width);
+		int startY = clipStart(srcY, destY);
+		int endY = clipEnd(height, srcY, src.height, destY, dest.height);
+		if (startX>=endX | startY>=endY) return;
+		boolean backwardY = src==dest && destY>srcY;
+		boolean backwardX = src==dest && destX>srcX;
+		short[] from = src.cells;
+		short[] to = dest.cells;
+		for(int i=startY; i<endY; i++) {
+			int y = (backwardY) ? endY-1-(i-startY) : i;
+			int srcRow = (srcY+y)*src.width+srcX;
+			int destRow = (destY+y)*dest.width+destX;
+			for(int j=startX; j<endX; j++) {
+				int x = (backwardX) ? endX-1-(j-startX) : j;
+				short value = from[srcRow+x];
+				if (value==transparent) continue;
+				to[destRow+x] = value;
+			}
+		}
+	}
+
+	/**
+	 * Copies a width by height rectangle from src, with its top left corner at srcX,srcY, into dest at destX,destY.
+	 */
+	public static void copyRegion(ByteGrid src, int srcX, int srcY, ByteGrid dest, int destX, int destY, int width, int height) {
+		int startX = clipStart(srcX, destX);
+		int endX = clipEnd(width, srcX, src.width, destX, dest.width);
+		int startY = clipStart(srcY, destY);
+		int endY = clipEnd(height, srcY, src.height, destY, dest.height);
+		if (startX>=endX | startY>=endY) return;
+		boolean backwardY = src==dest && destY>srcY;
+		for(int i=startY; i<endY; i++) {
+			int y = (backwardY) ? endY-1-(i-startY) : i;
+			System.arraycopy(src.cells, (srcY+y)*src.width+srcX+startX, dest.cells, (destY+y)*dest.width+destX+startX, endX-startX);
+		}
+	}
+
+	/**
+	 * Like copyRegion, but leaves alone any cell of dest where src holds the transparent value.
+	 */
+	public static void blit(ByteGrid src, int srcX, int srcY, ByteGrid dest, int destX, int destY, int width, int height, byte transparent) {
+		int startX = clipStart(srcX, destX);
+		int endX = clipEnd(width, srcX, src.width, destX, dest.width);
+		int startY = clipStart(srcY, destY);
+		int endY = clipEnd(height, srcY, src.height, destY, dest.height);
+		if (startX>=endX | startY>=endY) return;
+		boolean backwardY = src==dest && destY>srcY;
+		boolean backwardX = src==dest && destX>srcX;
+		byte[] from = src.cells;
+		byte[] to = dest.cells;
+		for(int i=startY; i<endY; i++) {
+			int y = (backwardY) ? endY-1-(i-startY) : i;
+			int srcRow = (srcY+y)*src.width+srcX;
+			int destRow = (destY+y)*dest.width+destX;
+			for(int j=startX; j<endX; j++) {
+				int x = (backwardX) ? endX-1-(j-startX) : j;
+				byte value = from[srcRow+x];
+				if (value==transparent) continue;
+				to[destRow+x] = value;
+			}
+		}
+	}
+
+	/**
+	 * Copies a width by height rectangle from src, with its top left corner at srcX,srcY, into dest at destX,destY.
+	 */
+	public static void copyRegion(FloatGrid src, int srcX, int srcY, FloatGrid dest, int destX, int destY, int width, int height) {
+		int startX = clipStart(srcX, destX);
+		int endX = clipEnd(width, srcX, src.width, destX, dest.width);
+		int startY = clipStart(srcY, destY);
+		int endY = clipEnd(height, srcY, src.height, destY, dest.height);
+		if (startX>=endX | startY>=endY) return;
+		boolean backwardY = src==dest && destY>srcY;
+		for(int i=startY; i<endY; i++) {
+			int y = (backwardY) ? endY-1-(i-startY) : i;
+			System.arraycopy(src.cells, (srcY+y)*src.width+srcX+startX, dest.cells, (destY+y)*dest.width+destX+startX, endX-startX);
+		}
+	}
+
+	/**
+	 * Like copyRegion, but leaves alone any cell of dest where src holds the transparent value.
+	 */
+	public static void blit(FloatGrid src, int srcX, int srcY, FloatGrid dest, int destX, int destY, int width, int height, float transparent) {
+		int startX = clipStart(srcX, destX);
+		int endX = clipEnd(width, srcX, src.width, destX, dest.width);
+		int startY = clipStart(srcY, destY);
+		int endY = clipEnd(height, srcY, src.height, destY, dest.height);
+		if (startX>=endX | startY>=endY) return;
+		boolean backwardY = src==dest && destY>srcY;
+		boolean backwardX = src==dest && destX>srcX;
+		float[] from = src.cells;
+		float[] to = dest.cells;
+		for(int i=startY; i<endY; i++) {
+			int y = (backwardY) ? endY-1-(i-startY) : i;
+			int srcRow = (srcY+y)*src.width+srcX;
+			int destRow = (destY+y)*dest.width+destX;
+			for(int j=startX; j<endX; j++) {
+				int x = (backwardX) ? endX-1-(j-startX) : j;
+				float value = from[srcRow+x];
+				if (Float.floatToIntBits(value)==Float.floatToIntBits(transparent)) continue;
+				to[destRow+x] = value;
+			}
+		}
+	}
+
+	/* Streaming */
+
+	public static void writeGrid(final IntGrid grid, OutputStream out) throws IOException {
+		GridCodec.writeInts(grid.width, grid.height, new GridCodec.IntRows() {
+			@Override
+			public void getRow(int y, int[] dest) {
+				System.arraycopy(grid.cells, y*grid.width, dest, 0, grid.width);
+			}
+		}, out);
+	}
+
+	public static IntGrid readIntGrid(InputStream in) throws IOException {
+		return GridCodec.readInts(in, new GridCodec.IntGridTarget<IntGrid>() {
+			@Override
+			public IntGrid create(int width, int height) {
+				return new IntGrid(width, height);
+			}
+
+			@Override
+			public void setRow(IntGrid grid, int y, int[] row) {
+				System.arraycopy(row, 0, grid.cells, y*grid.width, grid.width);
+			}
+		});
+	}
+
+	public static void writeGrid(final ShortGrid grid, OutputStream out) throws IOException {
+		GridCodec.writeInts(grid.width, grid.height, new GridCodec.IntRows() {
+			@Override
+			public void getRow(int y, int[] dest) {
+				int rowStart = y*grid.width;
+				for(int x=0; x<grid.width; x++) dest[x] = grid.cells[rowStart+x];
+			}
+		}, out);
+	}
+
+	public static ShortGrid readShortGrid(InputStream in) throws IOException {
+		return GridCodec.readInts(in, new GridCodec.IntGridTarget<ShortGrid>() {
+			@Override
+			public ShortGrid create(int width, int height) {
+				return new ShortGrid(width, height);
+			}
+
+			@Override
+			public void setRow(ShortGrid grid, int y, int[] row) {
+				int rowStart = y*grid.width;
+				for(int x=0; x<grid.width; x++) grid.cells[rowStart+x] = (short)row[x];
+			}
+		});
+	}
+
+	public static void writeGrid(final ByteGrid grid, OutputStream out) throws IOException {
+		GridCodec.writeInts(grid.width, grid.height, new GridCodec.IntRows() {
+			@Override
+			public void getRow(int y, int[] dest) {
+				int rowStart = y*grid.width;
+				for(int x=0; x<grid.width; x++) dest[x] = grid.cells[rowStart+x];
+			}
+		}, out);
+	}
+
+	public static ByteGrid readByteGrid(InputStream in) throws IOException {
+		return GridCodec.readInts(in, new GridCodec.IntGridTarget<ByteGrid>() {
+			@Override
+			public ByteGrid create(int width, int height) {
+				return new ByteGrid(width, height);
+			}
+
+			@Override
+			public void setRow(ByteGrid grid, int y, int[] row) {
+				int rowStart = y*grid.width;
+				for(int x=0; x<grid.width; x++) grid.cells[rowStart+x] = (byte)row[x];
+			}
+		});
+	}
+
+	/** Floats are written as their raw bits, so every value, NaNs included, reads back exactly. */
+	public static void writeGrid(final FloatGrid grid, OutputStream out) throws IOException {
+		GridCodec.writeInts(grid.width, grid.height, new GridCodec.IntRows() {
+			@Override
+			public void getRow(int y, int[] dest) {
+				int rowStart = y*grid.width;
+				for(int x=0; x<grid.width; x++) dest[x] = Float.floatToRawIntBits(grid.cells[rowStart+x]);
+			}
+		}, out);
+	}
+
+	public static FloatGrid readFloatGrid(InputStream in) throws IOException {
+		return GridCodec.readInts(in, new GridCodec.IntGridTarget<FloatGrid>() {
+			@Override
+			public FloatGrid create(int width, int height) {
+				return new FloatGrid(width, height);
+			}
+
+			@Override
+			public void setRow(FloatGrid grid, int y, int[] row) {
+				int rowStart = y*grid.width;
+				for(int x=0; x<grid.width; x++) grid.cells[rowStart+x] = Float.intBitsToFloat(row[x]);
+			}
+		});
+	}
+}
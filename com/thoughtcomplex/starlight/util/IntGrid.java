@@ -0,0 +1,113 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size grid of ints, for tile ids, costs, and anything else that needs a full int per cell. The cells are held in one
+ * flat array with no boxing, so getInt and setInt never allocate. The Collection2D methods box and unbox, for code which wants to
+ * treat every grid alike.
+ */
+public class IntGrid extends AbstractGrid<Integer> {
+	protected final int[] cells;
+
+	/** Creates a grid with every cell zero. */
+	public IntGrid(int width, int height) {
+		super(width, height);
+		this.cells = new int[width*height];
+	}
+
+	public int getInt(int x, int y) {
+		return cells[indexOf(x, y)];
+	}
+
+	public void setInt(int x, int y, int value) {
+		cells[indexOf(x, y)] = value;
+	}
+
+	/**
+	 * Copies length cells of row y, starting at column x, into dest starting at destOffset.
+	 */
+	public void getRow(int x, int y, int[] dest, int destOffset, int length) {
+		checkRow(x, y, length);
+		System.arraycopy(cells, y*width+x, dest, destOffset, length);
+	}
+
+	/**
+	 * Copies length values from src, starting at srcOffset, into row y starting at column x.
+	 */
+	public void setRow(int x, int y, int[] src, int srcOffset, int length) {
+		checkRow(x, y, length);
+		System.arraycopy(src, srcOffset, cells, y*width+x, length);
+	}
+
+	/** Sets every cell to value. */
+	public void fill(int value) {
+		Arrays.fill(cells, value);
+	}
+
+	/**
+	 * Sets every cell of the rectangle with its top left corner at x,y to value. Any part of the rectangle outside the grid is
+	 * ignored.
+	 */
+	public void fill(int x, int y, int width, int height, int value) {
+		int minX = Math.max(x, 0);
+		int maxX = (int)Math.min((long)x+width, this.width);
+		int maxY = (int)Math.min((long)y+height, this.height);
+		if (minX>=maxX) return;
+		for(int row=Math.max(y, 0); row<maxY; row++) Arrays.fill(cells, row*this.width+minX, row*this.width+maxX, value);
+	}
+
+	/**
+	 * Visits every cell of the rectangle with its top left corner at x,y which lies inside the grid, row by row, with no boxing.
+	 */
+	public void forEachIntIn(int x, int y, int width, int height, IntCellVisitor visitor) {
+		int minX = Math.max(x, 0);
+		int maxX = (int)Math.min((long)x+width, this.width);
+		int maxY = (int)Math.min((long)y+height, this.height);
+		for(int row=Math.max(y, 0); row<maxY; row++) {
+			int rowStart = row*this.width;
+			for(int column=minX; column<maxX; column++) visitor.visit(column, row, cells[rowStart+column]);
+		}
+	}
+
+	/** Sets every cell of row y to value. */
+	public void fillRow(int y, int value) {
+		checkRow(0, y, width);
+		Arrays.fill(cells, y*width, (y+1)*width, value);
+	}
+
+	/**
+	 * Returns the backing array, row after row, so cell x,y is at index y*getWidth()+x. Changes to it are changes to the grid.
+	 */
+	public int[] getCells() {
+		return cells;
+	}
+
+	@Override
+	public Integer get(int x, int y) {
+		return cells[indexOf(x, y)];
+	}
+
+	/** Sets a cell. A null is stored as zero. */
+	@Override
+	public boolean put(Integer e, int x, int y) {
+		cells[indexOf(x, y)] = (e==null) ? 0 : e;
+		return true;
+	}
+
+	/** Sets every cell to zero. */
+	@Override
+	public void clear() {
+		Arrays.fill(cells, 0);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof Integer)) return false;
+		int value = (Integer)o;
+		for(int cell : cells) {
+			if (cell==value) return true;
+		}
+		return false;
+	}
+}
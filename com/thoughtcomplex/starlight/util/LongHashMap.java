@@ -0,0 +1,142 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive longs to objects, with no boxing and no per-entry allocation. Keys and values live in two parallel
+ * arrays, probed linearly, and removal shifts later entries back instead of leaving tombstones, so lookups stay short however many
+ * entries come and go.
+ *
+ * <p>Entries can be walked without allocating by going through the slots from 0 to capacity()-1 and skipping the empty ones,
+ * but not while entries are being removed, which moves them between slots.
+ */
+class LongHashMap<V> {
+	private static final int MINIMUM_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int size = 0;
+	private int mask;
+	private int resizeAt;
+
+	LongHashMap() {
+		this(MINIMUM_CAPACITY);
+	}
+
+	LongHashMap(int expectedSize) {
+		int capacity = MINIMUM_CAPACITY;
+		while(capacity*3/4<expectedSize) capacity <<= 1;
+		allocate(capacity);
+	}
+
+	int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		int slot = slotOf(key);
+		while(values[slot]!=null) {
+			if (keys[slot]==key) return (V)values[slot];
+			slot = (slot+1) & mask;
+		}
+		return null;
+	}
+
+	/** Maps key to value, which must not be null, and returns whatever it replaced. */
+	@SuppressWarnings("unchecked")
+	V put(long key, V value) {
+		if (value==null) throw new IllegalArgumentException("Values cannot be null.");
+		int slot = slotOf(key);
+		while(values[slot]!=null) {
+			if (keys[slot]==key) {
+				V old = (V)values[slot];
+				values[slot] = value;
+				return old;
+			}
+			slot = (slot+1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+		if (size>=resizeAt) rehash(keys.length*2);
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	V remove(long key) {
+		int slot = slotOf(key);
+		while(values[slot]!=null) {
+			if (keys[slot]==key) {
+				V old = (V)values[slot];
+				removeSlot(slot);
+				size--;
+				return old;
+			}
+			slot = (slot+1) & mask;
+		}
+		return null;
+	}
+
+	void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	int capacity() {
+		return values.length;
+	}
+
+	long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	/** Returns the value in this slot, or null if the slot is empty. */
+	@SuppressWarnings("unchecked")
+	V valueAt(int slot) {
+		return (V)values[slot];
+	}
+
+	/** Empties a slot, then moves back any later entries in the same run which would no longer be found past the gap. */
+	private void removeSlot(int gap) {
+		int slot = gap;
+		while(true) {
+			slot = (slot+1) & mask;
+			if (values[slot]==null) break;
+			int home = slotOf(keys[slot]);
+			//Move the entry back if its home slot isn't cyclically between the gap and where it is now.
+			boolean between = (gap<=slot) ? (gap<home && home<=slot) : (gap<home || home<=slot);
+			if (!between) {
+				keys[gap] = keys[slot];
+				values[gap] = values[slot];
+				gap = slot;
+			}
+		}
+		values[gap] = null;
+	}
+
+	private int slotOf(long key) {
+		long hash = key*0x9E3779B97F4A7C15L;
+		return (int)(hash ^ (hash >>> 32)) & mask;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity-1;
+		resizeAt = capacity*3/4;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		for(int i=0; i<oldValues.length; i++) {
+			if (oldValues[i]==null) continue;
+			int slot = slotOf(oldKeys[i]);
+			while(values[slot]!=null) slot = (slot+1) & mask;
+			keys[slot] = oldKeys[i];
+			values[slot] = oldValues[i];
+		}
+	}
+}
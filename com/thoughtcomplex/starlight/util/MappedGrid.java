@@ -0,0 +1,385 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+/**
+ * A fixed-size grid whose cells live outside the Java heap, in direct or memory-mapped ByteBuffers, each cell a fixed number of
+ * bytes laid out by a CellLayout. However big the grid, the heap holds only a handful of buffer objects, so there is nothing for
+ * the garbage collector to trace and nothing to deserialize.
+ *
+ * <p>A grid created over a file opens instantly: the file is mapped, not read, and the operating system pages cells in as they're
+ * touched and writes changed pages back on its own schedule, or on flush(). The file is a 16-byte header (the magic number, width,
+ * height and cell size, as big-endian ints) followed by the cells, row after row, in the layout's big-endian encoding.
+ *
+ * <p>A single ByteBuffer can't address more than 2GB, so the cells are split into segments of whole rows of up to 1GB each,
+ * which lets a grid run to billions of cells. Reading and writing cells from several threads at once is safe in the sense that
+ * no buffer state is shared, but as with any array, nothing orders the writes.
+ */
+public class MappedGrid<E> implements Collection2D<E>, Closeable {
+	private static final int MAGIC = ('S' << 24) | ('L' << 16) | ('G' << 8) | 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int SEGMENT_BYTES = 1 << 30;
+
+	/** How each cell's value is encoded into its bytes. */
+	public interface CellLayout<E> {
+		/** Returns the number of bytes each cell takes up. This must never change. */
+		public int getCellSize();
+		/** Decodes the cell starting at offset in buffer. A cell which has never been written is all zero bytes. */
+		public E read(ByteBuffer buffer, int offset);
+		/** Encodes value into the cell starting at offset in buffer. */
+		public void write(ByteBuffer buffer, int offset, E value);
+	}
+
+	/** One int per cell. A null is stored as zero. */
+	public static final CellLayout<Integer> INT_CELLS = new CellLayout<Integer>() {
+		@Override
+		public int getCellSize() {
+			return 4;
+		}
+
+		@Override
+		public Integer read(ByteBuffer buffer, int offset) {
+			return buffer.getInt(offset);
+		}
+
+		@Override
+		public void write(ByteBuffer buffer, int offset, Integer value) {
+			buffer.putInt(offset, (value==null) ? 0 : value);
+		}
+	};
+
+	/** One short per cell. A null is stored as zero. */
+	public static final CellLayout<Short> SHORT_CELLS = new CellLayout<Short>() {
+		@Override
+		public int getCellSize() {
+			return 2;
+		}
+
+		@Override
+		public Short read(ByteBuffer buffer, int offset) {
+			return buffer.getShort(offset);
+		}
+
+		@Override
+		public void write(ByteBuffer buffer, int offset, Short value) {
+			buffer.putShort(offset, (value==null) ? 0 : value);
+		}
+	};
+
+	/** One byte per cell. A null is stored as zero. */
+	public static final CellLayout<Byte> BYTE_CELLS = new CellLayout<Byte>() {
+		@Override
+		public int getCellSize() {
+			return 1;
+		}
+
+		@Override
+		public Byte read(ByteBuffer buffer, int offset) {
+			return buffer.get(offset);
+		}
+
+		@Override
+		public void write(ByteBuffer buffer, int offset, Byte value) {
+			buffer.put(offset, (value==null) ? 0 : value);
+		}
+	};
+
+	/** One float per cell. A null is stored as zero. */
+	public static final CellLayout<Float> FLOAT_CELLS = new CellLayout<Float>() {
+		@Override
+		public int getCellSize() {
+			return 4;
+		}
+
+		@Override
+		public Float read(ByteBuffer buffer, int offset) {
+			return buffer.getFloat(offset);
+		}
+
+		@Override
+		public void write(ByteBuffer buffer, int offset, Float value) {
+			buffer.putFloat(offset, (value==null) ? 0f : value);
+		}
+	};
+
+	private final int width;
+	private final int height;
+	private final CellLayout<E> layout;
+	private final int cellSize;
+	private final int rowBytes;
+	private final int rowsPerSegment;
+	private final ByteBuffer[] segments;
+	/** The open file, or null for a grid held in direct buffers. */
+	private final RandomAccessFile file;
+
+	private MappedGrid(int width, int height, CellLayout<E> layout, RandomAccessFile file, FileChannel.MapMode mode) throws IOException {
+		if (width<0 | height<0) throw new IllegalArgumentException("Grid dimensions can't be negative.");
+		this.width = width;
+		this.height = height;
+		this.layout = layout;
+		this.cellSize = layout.getCellSize();
+		if (cellSize<=0) throw new IllegalArgumentException("Cells must be at least one byte.");
+		long rowLength = (long)width*cellSize;
+		if (rowLength>SEGMENT_BYTES) throw new IllegalArgumentException("Rows are too long: "+width+" cells of "+cellSize+" bytes");
+		this.rowBytes = (int)rowLength;
+		this.rowsPerSegment = (rowBytes==0) ? Math.max(height, 1) : SEGMENT_BYTES/rowBytes;
+		this.file = file;
+
+		int segmentCount = (height+rowsPerSegment-1)/rowsPerSegment;
+		segments = new ByteBuffer[segmentCount];
+		for(int i=0; i<segmentCount; i++) {
+			int rows = Math.min(rowsPerSegment, height-i*rowsPerSegment);
+			int bytes = rows*rowBytes;
+			if (file==null) {
+				segments[i] = ByteBuffer.allocateDirect(bytes);
+			} else {
+				long start = HEADER_SIZE+(long)i*rowsPerSegment*rowBytes;
+				segments[i] = file.getChannel().map(mode, start, bytes);
+			}
+		}
+	}
+
+	/**
+	 * Creates a grid held in direct buffers, off the heap but not backed by any file, with every cell zero bytes.
+	 */
+	public static <E> MappedGrid<E> allocate(int width, int height, CellLayout<E> layout) {
+		try {
+			return new MappedGrid<E>(width, height, layout, null, null);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex); //nothing is mapped, so this can't happen
+		}
+	}
+
+	/**
+	 * Creates a new grid file, replacing any file already there, and maps it for reading and writing. Every cell starts as zero
+	 * bytes; on most filesystems the file is sparse until cells are written.
+	 * @param file				The file to create
+	 * @param width				The grid's width, in cells
+	 * @param height			The grid's height, in cells
+	 * @param layout			How each cell is encoded
+	 * @return					The new grid, which must be closed when it's no longer needed
+	 * @throws IOException		Thrown if the file can't be created or mapped.
+	 */
+	public static <E> MappedGrid<E> create(File file, int width, int height, CellLayout<E> layout) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.writeInt(MAGIC);
+			raf.writeInt(width);
+			raf.writeInt(height);
+			raf.writeInt(layout.getCellSize());
+			raf.setLength(HEADER_SIZE+(long)width*height*layout.getCellSize());
+			return new MappedGrid<E>(width, height, layout, raf, FileChannel.MapMode.READ_WRITE);
+		} catch (IOException ex) {
+			raf.close();
+			throw ex;
+		} catch (RuntimeException ex) {
+			raf.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Maps an existing grid file. Nothing but the header is read until cells are asked for.
+	 * @param file				The file to open
+	 * @param layout			How each cell is encoded; its cell size must match the one the file was created with
+	 * @param writable			Whether cells can be put. If not, put throws ReadOnlyBufferException.
+	 * @return					The grid, which must be closed when it's no longer needed
+	 * @throws IOException		Thrown if the file can't be opened, isn't a grid file, or doesn't match the layout.
+	 */
+	public static <E> MappedGrid<E> open(File file, CellLayout<E> layout, boolean writable) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, (writable) ? "rw" : "r");
+		try {
+			if (raf.length()<HEADER_SIZE || raf.readInt()!=MAGIC) throw new IOException("Not a grid file: "+file);
+			int width = raf.readInt();
+			int height = raf.readInt();
+			int cellSize = raf.readInt();
+			if (cellSize!=layout.getCellSize()) {
+				throw new IOException("Grid file has "+cellSize+"-byte cells, but the layout expects "+layout.getCellSize()+": "+file);
+			}
+			if (width<0 | height<0 || raf.length()<HEADER_SIZE+(long)width*height*cellSize) throw new IOException("Grid file is truncated: "+file);
+			return new MappedGrid<E>(width, height, layout, raf, (writable) ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY);
+		} catch (IOException ex) {
+			raf.close();
+			throw ex;
+		} catch (RuntimeException ex) {
+			raf.close();
+			throw ex;
+		}
+	}
+
+	public CellLayout<E> getLayout() {
+		return layout;
+	}
+
+	/** Returns the buffer holding row y. */
+	private ByteBuffer segmentOf(int x, int y) {
+		if (x<0 | y<0 | x>=width | y>=height) throw new IndexOutOfBoundsException("Cell "+x+","+y+" is outside the "+width+" x "+height+" grid.");
+		return segments[y/rowsPerSegment];
+	}
+
+	/** Returns the offset of cell x,y within its segment. Call segmentOf first, which checks the bounds. */
+	private int offsetOf(int x, int y) {
+		return (y%rowsPerSegment)*rowBytes+x*cellSize;
+	}
+
+	private void checkField(int fieldOffset, int size) {
+		if (fieldOffset<0 | fieldOffset+size>cellSize) throw new IndexOutOfBoundsException("Field at "+fieldOffset+" doesn't fit in a "+cellSize+"-byte cell.");
+	}
+
+	/*
+	 * Raw access to the bytes of a cell, without going through the layout or boxing. fieldOffset is counted in bytes from the
+	 * start of the cell, so a layout of several fields can have each read and written on its own.
+	 */
+
+	public int getInt(int x, int y, int fieldOffset) {
+		checkField(fieldOffset, 4);
+		return segmentOf(x, y).getInt(offsetOf(x, y)+fieldOffset);
+	}
+
+	public void setInt(int x, int y, int fieldOffset, int value) {
+		checkField(fieldOffset, 4);
+		segmentOf(x, y).putInt(offsetOf(x, y)+fieldOffset, value);
+	}
+
+	public float getFloat(int x, int y, int fieldOffset) {
+		checkField(fieldOffset, 4);
+		return segmentOf(x, y).getFloat(offsetOf(x, y)+fieldOffset);
+	}
+
+	public void setFloat(int x, int y, int fieldOffset, float value) {
+		checkField(fieldOffset, 4);
+		segmentOf(x, y).putFloat(offsetOf(x, y)+fieldOffset, value);
+	}
+
+	public short getShort(int x, int y, int fieldOffset) {
+		checkField(fieldOffset, 2);
+		return segmentOf(x, y).getShort(offsetOf(x, y)+fieldOffset);
+	}
+
+	public void setShort(int x, int y, int fieldOffset, short value) {
+		checkField(fieldOffset, 2);
+		segmentOf(x, y).putShort(offsetOf(x, y)+fieldOffset, value);
+	}
+
+	public byte getByte(int x, int y, int fieldOffset) {
+		checkField(fieldOffset, 1);
+		return segmentOf(x, y).get(offsetOf(x, y)+fieldOffset);
+	}
+
+	public void setByte(int x, int y, int fieldOffset, byte value) {
+		checkField(fieldOffset, 1);
+		segmentOf(x, y).put(offsetOf(x, y)+fieldOffset, value);
+	}
+
+	@Override
+	public E get(int x, int y) {
+		return layout.read(segmentOf(x, y), offsetOf(x, y));
+	}
+
+	@Override
+	public boolean put(E e, int x, int y) {
+		layout.write(segmentOf(x, y), offsetOf(x, y), e);
+		return true;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	/** Sets every byte of every cell to zero. For a mapped grid, this touches and dirties every page of the file. */
+	@Override
+	public void clear() {
+		for(ByteBuffer segment : segments) {
+			int limit = segment.limit();
+			int i = 0;
+			for(; i+8<=limit; i+=8) segment.putLong(i, 0L);
+			for(; i<limit; i++) segment.put(i, (byte)0);
+		}
+	}
+
+	/** Decodes every cell looking for o, so this reads the whole grid in. */
+	@Override
+	public boolean contains(Object o) {
+		for(int y=0; y<height; y++) {
+			for(int x=0; x<width; x++) {
+				E cell = get(x, y);
+				if (o==null ? cell==null : o.equals(cell)) return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		for(Object o : c) {
+			if (!contains(o)) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean containsAll(Collection2D<?> c) {
+		for(int y=0; y<c.getHeight(); y++) {
+			for(int x=0; x<c.getWidth(); x++) {
+				if (!contains(c.get(x, y))) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A grid always has all of its cells; it's empty only if it has no room for any.
+	 */
+	@Override
+	public boolean isEmpty() {
+		return width==0 | height==0;
+	}
+
+	@Override
+	public void forEachIn(int x, int y, int width, int height, CellVisitor<? super E> visitor) {
+		int minX = Math.max(x, 0);
+		int maxX = (int)Math.min((long)x+width, this.width);
+		int maxY = (int)Math.min((long)y+height, this.height);
+		for(int row=Math.max(y, 0); row<maxY; row++) {
+			ByteBuffer segment = segments[row/rowsPerSegment];
+			int rowStart = (row%rowsPerSegment)*rowBytes;
+			for(int column=minX; column<maxX; column++) visitor.visit(column, row, layout.read(segment, rowStart+column*cellSize));
+		}
+	}
+
+	/**
+	 * Writes any changed cells of a mapped grid back to the file now, rather than whenever the operating system gets round to it.
+	 * Does nothing for a grid held in direct buffers.
+	 */
+	public void flush() {
+		if (file==null) return;
+		for(ByteBuffer segment : segments) {
+			if (!segment.isReadOnly()) ((MappedByteBuffer)segment).force();
+		}
+	}
+
+	/**
+	 * Flushes and closes the file. As with MappedStreamableReader, the mappings themselves are released by the garbage collector
+	 * once nothing refers to them, so the grid must not be used after it is closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (file==null) return;
+		flush();
+		file.close();
+	}
+}
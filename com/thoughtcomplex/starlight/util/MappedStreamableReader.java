@@ -0,0 +1,79 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads Streamable data from a memory-mapped file. Nothing is copied through the heap on the way in: primitives and Strings are
+ * decoded straight out of the mapping, and the operating system only pages in the parts of the file which are actually touched.
+ * That makes it cheap to open a very large file, read a header, and skip over everything that isn't needed.
+ *
+ * <p>This is a StreamableInputStream, so it can be handed to any streamFrom implementation as-is. Because all of the data is
+ * already "buffered", the reader can also seek freely with position(long).
+ *
+ * <p>A single mapping is limited to Integer.MAX_VALUE bytes, so larger files can't be opened this way.
+ */
+public class MappedStreamableReader extends StreamableInputStream {
+	private final FileChannel channel;
+
+	private MappedStreamableReader(FileChannel channel) throws IOException {
+		super(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		this.channel = channel;
+	}
+
+	/**
+	 * Maps an entire file for reading. If the file starts with a stream header (see StreamableOutputStream), it is read here and the
+	 * reader is left positioned just after it; positions are always counted from the very start of the file.
+	 * @param file				The file to map
+	 * @return					A reader positioned at the start of the data
+	 * @throws IOException		Thrown if the file can't be opened, or is too large to be mapped in one piece.
+	 */
+	public static MappedStreamableReader open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length()>Integer.MAX_VALUE) throw new IOException("File is too large to map: "+file);
+			MappedStreamableReader result = new MappedStreamableReader(raf.getChannel());
+			result.readHeader();
+			return result;
+		} catch (IOException ex) {
+			raf.close();
+			throw ex;
+		}
+	}
+
+	/** Returns the total size of the mapped file in bytes. */
+	public long size() {
+		return buffer.limit();
+	}
+
+	/** Returns the current read position, in bytes from the start of the file. */
+	public long position() {
+		return buffer.position();
+	}
+
+	/**
+	 * Moves the read position to anywhere in the file.
+	 * @param position			The new position, in bytes from the start of the file
+	 * @throws IndexOutOfBoundsException	Thrown if the position is outside the file.
+	 */
+	public void position(long position) {
+		if (position<0 | position>buffer.limit()) throw new IndexOutOfBoundsException("Position outside of mapped file.");
+		buffer.position((int)position);
+	}
+
+	/** Returns true if there is nothing left to read. */
+	public boolean atEnd() {
+		return !buffer.hasRemaining();
+	}
+
+	/**
+	 * Closes the file. The mapping itself is released by the garbage collector once nothing refers to it any more, so this reader
+	 * must not be used after it is closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,444 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Whole-grid passes run in parallel on a ForkJoinPool: reductions which only read, maps which replace every cell, and stencil
+ * steps which compute each cell from its neighbours in another grid.
+ *
+ * <p>The grid is split in half, and in half again, into bands of whole rows, down to bands of around 16K cells. Each band is a
+ * contiguous run of the backing array, so every task streams through its own stretch of memory, and the pool's work stealing
+ * spreads the bands over however many cores there are.
+ *
+ * <p>IntGrid and FloatGrid are worked on in place with no boxing. Any other Collection2D, such as a DataTable, goes through the
+ * generic methods: cells are computed in parallel, but the results are written back on the calling thread, since putting into
+ * most grids isn't thread-safe. Reading isn't always thread-safe either. The array and buffer backed grids (the AbstractGrids,
+ * DataTable, and MappedGrid, as long as its Layout only reads) are read in parallel, but any other grid, such as a ChunkedGrid,
+ * which remembers where it last looked and may load chunks as it goes, is first read into a buffer on the calling thread. The
+ * callbacks themselves must be safe to call from several threads at once.
+ *
+ * <p>The methods which don't take a pool use ForkJoinPool.commonPool().
+ */
+public final class ParallelGrids {
+	/** Roughly how many cells each task handles before it's not worth splitting any further. */
+	private static final int TARGET_BAND_CELLS = 1 << 14;
+
+	private ParallelGrids() {}
+
+	public interface IntCellMapper {
+		public int map(int x, int y, int value);
+	}
+
+	public interface FloatCellMapper {
+		public float map(int x, int y, float value);
+	}
+
+	public interface CellMapper<E> {
+		public E map(int x, int y, E value);
+	}
+
+	/**
+	 * Computes the new value of cell x,y from the old grid, src, which it can read anywhere, including its neighbours.
+	 */
+	public interface IntStencil {
+		public int apply(IntGrid src, int x, int y);
+	}
+
+	public interface FloatStencil {
+		public float apply(FloatGrid src, int x, int y);
+	}
+
+	public interface CellStencil<E> {
+		public E apply(Collection2D<? extends E> src, int x, int y);
+	}
+
+	/**
+	 * Folds cells into accumulators. Each band gets its own accumulator from create, and feeds it every cell through accumulate;
+	 * then the bands' accumulators are merged pairwise with combine, which may return either of its arguments updated, or a new one.
+	 */
+	public interface IntReduction<A> {
+		public A create();
+		public void accumulate(A accumulator, int x, int y, int value);
+		public A combine(A left, A right);
+	}
+
+	public interface FloatReduction<A> {
+		public A create();
+		public void accumulate(A accumulator, int x, int y, float value);
+		public A combine(A left, A right);
+	}
+
+	public interface CellReduction<E, A> {
+		public A create();
+		public void accumulate(A accumulator, int x, int y, E value);
+		public A combine(A left, A right);
+	}
+
+	/* Map */
+
+	public static void map(IntGrid grid, IntCellMapper mapper) {
+		map(grid, mapper, ForkJoinPool.commonPool());
+	}
+
+	/** Replaces every cell with mapper's result for it, in place. */
+	public static void map(final IntGrid grid, final IntCellMapper mapper, ForkJoinPool pool) {
+		runBands(grid.width, grid.height, pool, new Band() {
+			@Override
+			public void run(int fromY, int toY) {
+				int[] cells = grid.cells;
+				int width = grid.width;
+				for(int y=fromY; y<toY; y++) {
+					int rowStart = y*width;
+					for(int x=0; x<width; x++) cells[rowStart+x] = mapper.map(x, y, cells[rowStart+x]);
+				}
+			}
+		});
+	}
+
+	public static void map(FloatGrid grid, FloatCellMapper mapper) {
+		map(grid, mapper, ForkJoinPool.commonPool());
+	}
+
+	/** Replaces every cell with mapper's result for it, in place. */
+	public static void map(final FloatGrid grid, final FloatCellMapper mapper, ForkJoinPool pool) {
+		runBands(grid.width, grid.height, pool, new Band() {
+			@Override
+			public void run(int fromY, int toY) {
+				float[] cells = grid.cells;
+				int width = grid.width;
+				for(int y=fromY; y<toY; y++) {
+					int rowStart = y*width;
+					for(int x=0; x<width; x++) cells[rowStart+x] = mapper.map(x, y, cells[rowStart+x]);
+				}
+			}
+		});
+	}
+
+	public static <E> void map(Collection2D<E> grid, CellMapper<E> mapper) {
+		map(grid, mapper, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Replaces every cell with mapper's result for it. The results are computed in parallel into a buffer, then put back on the
+	 * calling thread; a DataTable gets them a whole row at a time.
+	 */
+	public static <E> void map(final Collection2D<E> grid, final CellMapper<E> mapper, ForkJoinPool pool) {
+		final int width = grid.getWidth();
+		final Object[] results = new Object[checkedArea(width, grid.getHeight())];
+		//A grid which can't be read from the pool is read into the buffer first, and each cell is then replaced by its result.
+		final boolean buffered = !isConcurrentlyReadable(grid);
+		if (buffered) readAll(grid, width, results);
+		runBands(width, grid.getHeight(), pool, new Band() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public void run(int fromY, int toY) {
+				for(int y=fromY; y<toY; y++) {
+					for(int x=0; x<width; x++) {
+						int i = y*width+x;
+						results[i] = mapper.map(x, y, (buffered) ? (E)results[i] : grid.get(x, y));
+					}
+				}
+			}
+		});
+		putAll(results, width, grid);
+	}
+
+	/* Stencil */
+
+	public static void stencil(IntGrid src, IntGrid dest, IntStencil stencil) {
+		stencil(src, dest, stencil, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Sets every cell of dest to stencil's result for that cell of src. src is only read, so every cell sees the old values of its
+	 * neighbours however the work is divided up; swap the two grids afterwards for the next step.
+	 */
+	public static void stencil(final IntGrid src, final IntGrid dest, final IntStencil stencil, ForkJoinPool pool) {
+		checkStencil(src, dest);
+		runBands(src.width, src.height, pool, new Band() {
+			@Override
+			public void run(int fromY, int toY) {
+				int[] cells = dest.cells;
+				int width = dest.width;
+				for(int y=fromY; y<toY; y++) {
+					int rowStart = y*width;
+					for(int x=0; x<width; x++) cells[rowStart+x] = stencil.apply(src, x, y);
+				}
+			}
+		});
+	}
+
+	public static void stencil(FloatGrid src, FloatGrid dest, FloatStencil stencil) {
+		stencil(src, dest, stencil, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Sets every cell of dest to stencil's result for that cell of src. Swap the two grids afterwards for the next step.
+	 */
+	public static void stencil(final FloatGrid src, final FloatGrid dest, final FloatStencil stencil, ForkJoinPool pool) {
+		checkStencil(src, dest);
+		runBands(src.width, src.height, pool, new Band() {
+			@Override
+			public void run(int fromY, int toY) {
+				float[] cells = dest.cells;
+				int width = dest.width;
+				for(int y=fromY; y<toY; y++) {
+					int rowStart = y*width;
+					for(int x=0; x<width; x++) cells[rowStart+x] = stencil.apply(src, x, y);
+				}
+			}
+		});
+	}
+
+	public static <E> void stencil(Collection2D<? extends E> src, Collection2D<E> dest, CellStencil<E> stencil) {
+		stencil(src, dest, stencil, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Puts into dest stencil's result for every cell of src. The results are computed in parallel, then put on the calling thread.
+	 * dest must not be src. If src can't be read from several threads at once, the stencil is handed a copy of it instead.
+	 */
+	public static <E> void stencil(Collection2D<? extends E> src, Collection2D<E> dest, final CellStencil<E> stencil,
+			ForkJoinPool pool) {
+		if (src==dest) throw new IllegalArgumentException("A stencil can't write into the grid it reads from.");
+		final int width = src.getWidth();
+		final Object[] results = new Object[checkedArea(width, src.getHeight())];
+		final Collection2D<? extends E> readable = (isConcurrentlyReadable(src)) ? src : copyOf(src, results);
+		runBands(width, src.getHeight(), pool, new Band() {
+			@Override
+			public void run(int fromY, int toY) {
+				for(int y=fromY; y<toY; y++) {
+					for(int x=0; x<width; x++) results[y*width+x] = stencil.apply(readable, x, y);
+				}
+			}
+		});
+		putAll(results, width, dest);
+	}
+
+	/* Reduce */
+
+	public static <A> A reduce(IntGrid grid, IntReduction<A> reduction) {
+		return reduce(grid, reduction, ForkJoinPool.commonPool());
+	}
+
+	/** Folds every cell of the grid into one result. */
+	public static <A> A reduce(final IntGrid grid, final IntReduction<A> reduction, ForkJoinPool pool) {
+		return reduceBands(grid.width, grid.height, pool, new BandReducer<A>() {
+			@Override
+			public A run(int fromY, int toY) {
+				A accumulator = reduction.create();
+				int[] cells = grid.cells;
+				int width = grid.width;
+				for(int y=fromY; y<toY; y++) {
+					int rowStart = y*width;
+					for(int x=0; x<width; x++) reduction.accumulate(accumulator, x, y, cells[rowStart+x]);
+				}
+				return accumulator;
+			}
+
+			@Override
+			public A combine(A left, A right) {
+				return reduction.combine(left, right);
+			}
+		});
+	}
+
+	public static <A> A reduce(FloatGrid grid, FloatReduction<A> reduction) {
+		return reduce(grid, reduction, ForkJoinPool.commonPool());
+	}
+
+	/** Folds every cell of the grid into one result. */
+	public static <A> A reduce(final FloatGrid grid, final FloatReduction<A> reduction, ForkJoinPool pool) {
+		return reduceBands(grid.width, grid.height, pool, new BandReducer<A>() {
+			@Override
+			public A run(int fromY, int toY) {
+				A accumulator = reduction.create();
+				float[] cells = grid.cells;
+				int width = grid.width;
+				for(int y=fromY; y<toY; y++) {
+					int rowStart = y*width;
+					for(int x=0; x<width; x++) reduction.accumulate(accumulator, x, y, cells[rowStart+x]);
+				}
+				return accumulator;
+			}
+
+			@Override
+			public A combine(A left, A right) {
+				return reduction.combine(left, right);
+			}
+		});
+	}
+
+	public static <E, A> A reduce(Collection2D<E> grid, CellReduction<? super E, A> reduction) {
+		return reduce(grid, reduction, ForkJoinPool.commonPool());
+	}
+
+	/** Folds every cell of the grid into one result. The grid mustn't change while this runs. */
+	public static <E, A> A reduce(final Collection2D<E> grid, final CellReduction<? super E, A> reduction, ForkJoinPool pool) {
+		final int width = grid.getWidth();
+		final Object[] cells = (isConcurrentlyReadable(grid)) ? null :
+				readAll(grid, width, new Object[checkedArea(width, grid.getHeight())]);
+		return reduceBands(width, grid.getHeight(), pool, new BandReducer<A>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public A run(int fromY, int toY) {
+				A accumulator = reduction.create();
+				for(int y=fromY; y<toY; y++) {
+					for(int x=0; x<width; x++) {
+						reduction.accumulate(accumulator, x, y, (cells!=null) ? (E)cells[y*width+x] : grid.get(x, y));
+					}
+				}
+				return accumulator;
+			}
+
+			@Override
+			public A combine(A left, A right) {
+				return reduction.combine(left, right);
+			}
+		});
+	}
+
+	/* Banding */
+
+	private interface Band {
+		public void run(int fromY, int toY);
+	}
+
+	private interface BandReducer<A> {
+		public A run(int fromY, int toY);
+		public A combine(A left, A right);
+	}
+
+	/** Returns how many rows a band should have so that it holds about TARGET_BAND_CELLS cells. */
+	private static int grain(int width) {
+		return Math.max(1, TARGET_BAND_CELLS/Math.max(width, 1));
+	}
+
+	private static void runBands(int width, int height, ForkJoinPool pool, Band band) {
+		if (width<=0 | height<=0) return;
+		pool.invoke(new BandAction(band, 0, height, grain(width)));
+	}
+
+	private static <A> A reduceBands(int width, int height, ForkJoinPool pool, BandReducer<A> reducer) {
+		if (width<=0 | height<=0) return reducer.run(0, 0); //an empty accumulator
+		return pool.invoke(new BandTask<A>(reducer, 0, height, grain(width)));
+	}
+
+	private static class BandAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Band band;
+		private final int fromY;
+		private final int toY;
+		private final int grain;
+
+		private BandAction(Band band, int fromY, int toY, int grain) {
+			this.band = band;
+			this.fromY = fromY;
+			this.toY = toY;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (toY-fromY<=grain) {
+				band.run(fromY, toY);
+				return;
+			}
+			int middle = (fromY+toY) >>> 1;
+			invokeAll(new BandAction(band, fromY, middle, grain), new BandAction(band, middle, toY, grain));
+		}
+	}
+
+	private static class BandTask<A> extends RecursiveTask<A> {
+		private static final long serialVersionUID = 1L;
+		private final BandReducer<A> reducer;
+		private final int fromY;
+		private final int toY;
+		private final int grain;
+
+		private BandTask(BandReducer<A> reducer, int fromY, int toY, int grain) {
+			this.reducer = reducer;
+			this.fromY = fromY;
+			this.toY = toY;
+			this.grain = grain;
+		}
+
+		@Override
+		protected A compute() {
+			if (toY-fromY<=grain) return reducer.run(fromY, toY);
+			int middle = (fromY+toY) >>> 1;
+			BandTask<A> top = new BandTask<A>(reducer, fromY, middle, grain);
+			top.fork();
+			A bottom = new BandTask<A>(reducer, middle, toY, grain).compute();
+			return reducer.combine(top.join(), bottom);
+		}
+	}
+
+	/* Helpers */
+
+	private static void checkStencil(AbstractGrid<?> src, AbstractGrid<?> dest) {
+		if (src==dest) throw new IllegalArgumentException("A stencil can't write into the grid it reads from.");
+		if (src.width!=dest.width | src.height!=dest.height) throw new IllegalArgumentException("Stencil grids must be the same size.");
+	}
+
+	private static int checkedArea(int width, int height) {
+		long area = (long)width*height;
+		if (area>Integer.MAX_VALUE-8) throw new IllegalArgumentException("Grid is too large to buffer: "+width+" x "+height);
+		return (int)Math.max(area, 0);
+	}
+
+	/**
+	 * Returns true if get can be called on the grid from several threads at once, because it only ever reads an array or a buffer.
+	 * Other grids might change their own state on get, as ChunkedGrid does.
+	 */
+	private static boolean isConcurrentlyReadable(Collection2D<?> grid) {
+		return grid instanceof AbstractGrid || grid instanceof DataTable || grid instanceof MappedGrid;
+	}
+
+	/** Reads every cell of the grid into dest, in row-major order, on the calling thread. Returns dest. */
+	private static Object[] readAll(Collection2D<?> grid, int width, Object[] dest) {
+		if (width==0) return dest;
+		int height = dest.length/width;
+		for(int y=0; y<height; y++) {
+			for(int x=0; x<width; x++) dest[y*width+x] = grid.get(x, y);
+		}
+		return dest;
+	}
+
+	/** Copies a grid into a DataTable, which can be read from several threads at once, using buffer as scratch space. */
+	@SuppressWarnings("unchecked")
+	private static <E> DataTable<E> copyOf(Collection2D<? extends E> grid, Object[] buffer) {
+		int width = grid.getWidth();
+		DataTable<E> result = new DataTable<E>();
+		if (width==0) return result;
+		readAll(grid, width, buffer);
+		Object[] row = new Object[width];
+		for(int y=0; y<buffer.length/width; y++) {
+			System.arraycopy(buffer, y*width, row, 0, width);
+			result.setRow(0, y, (E[])row);
+		}
+		return result;
+	}
+
+	/** Writes buffered results back into a grid on the calling thread. */
+	@SuppressWarnings("unchecked")
+	private static <E> void putAll(Object[] results, int width, Collection2D<E> grid) {
+		if (width==0) return;
+		int height = results.length/width;
+		if (grid instanceof DataTable) {
+			//A row at a time, so listeners hear about each row once rather than each cell.
+			DataTable<E> table = (DataTable<E>)grid;
+			Object[] row = new Object[width];
+			for(int y=0; y<height; y++) {
+				System.arraycopy(results, y*width, row, 0, width);
+				table.setRow(0, y, (E[])row);
+			}
+			return;
+		}
+		for(int y=0; y<height; y++) {
+			for(int x=0; x<width; x++) grid.put((E)results[y*width+x], x, y);
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * Reads and writes the text format of java.util.Properties, one entry at a time, through a fixed-size buffer. Unlike going through
+ * a Properties object, nothing is held in memory beyond the entry being worked on, so any number of entries costs the same extra
+ * memory and time grows only with the length of the text.
+ *
+ * <p>Everything Properties.load accepts is understood: '#' and '!' comments, '=', ':' or whitespace between key and value,
+ * backslash escapes including unicode escapes, and lines continued with a trailing backslash.
+ */
+class PropertiesFormat {
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private final char[] buffer = new char[8192];
+	private int position = 0;
+	private int limit = 0;
+	/** A character which was read and then pushed back, or -2 if there isn't one. */
+	private int pushedBack = -2;
+	private Reader in;
+	private Writer out;
+
+	private PropertiesFormat() {}
+
+	/**
+	 * Reads every entry from the Reader into the target, in order, as a single batch of changes. Entries with keys already in the
+	 * target replace the old values. The Reader is not closed.
+	 */
+	static void load(Reader in, DataBoundProperties target) throws IOException {
+		PropertiesFormat format = new PropertiesFormat();
+		format.in = in;
+		StringBuilder key = new StringBuilder();
+		StringBuilder value = new StringBuilder();
+		target.beginUpdate();
+		try {
+			while(format.readEntry(key, value)) target.put(key.toString(), value.toString());
+		} finally {
+			target.endUpdate();
+		}
+	}
+
+	/**
+	 * Writes every entry the Iterator gives, one per line, escaped so that load (or Properties.load) reads back exactly the same
+	 * keys and values. Null values are written as empty. The Writer is flushed but not closed.
+	 */
+	static void store(Iterator<? extends Entry<String,String>> entries, Writer out) throws IOException {
+		PropertiesFormat format = new PropertiesFormat();
+		format.out = out;
+		while(entries.hasNext()) {
+			Entry<String,String> entry = entries.next();
+			format.writeEscaped(entry.getKey(), true);
+			format.write('=');
+			format.writeEscaped(entry.getValue(), false);
+			format.write('\n');
+		}
+		format.flushBuffer();
+		out.flush();
+	}
+
+	/* Reading */
+
+	private int read() throws IOException {
+		if (pushedBack!=-2) {
+			int result = pushedBack;
+			pushedBack = -2;
+			return result;
+		}
+		if (position==limit) {
+			limit = in.read(buffer, 0, buffer.length);
+			position = 0;
+			if (limit<=0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[position++];
+	}
+
+	private void unread(int c) {
+		pushedBack = c;
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c==' ' | c=='\t' | c=='\f';
+	}
+
+	private static boolean isLineEnd(int c) {
+		return c=='\n' | c=='\r';
+	}
+
+	/** Having just read a '\r' or '\n', swallows the '\n' of a "\r\n" pair. */
+	private void finishLineEnd(int c) throws IOException {
+		if (c!='\r') return;
+		int next = read();
+		if (next!='\n') unread(next);
+	}
+
+	private int skipWhitespace() throws IOException {
+		int c = read();
+		while(isWhitespace(c)) c = read();
+		return c;
+	}
+
+	/**
+	 * Reads the next entry into key and value. Returns false, with both left empty, at the end of the input.
+	 */
+	private boolean readEntry(StringBuilder key, StringBuilder value) throws IOException {
+		key.setLength(0);
+		value.setLength(0);
+
+		//Find the start of the next line with something on it
+		int c;
+		while(true) {
+			c = skipWhitespace();
+			if (c==-1) return false;
+			if (isLineEnd(c)) {
+				finishLineEnd(c);
+				continue;
+			}
+			if (c=='#' | c=='!') {
+				while(c!=-1 && !isLineEnd(c)) c = read();
+				if (c!=-1) finishLineEnd(c);
+				continue;
+			}
+			break;
+		}
+
+		//The key runs up to an unescaped separator or whitespace
+		while(c!=-1 && !isLineEnd(c) && c!='=' && c!=':' && !isWhitespace(c)) {
+			if (c=='\\') {
+				c = readEscape(key);
+			} else {
+				key.append((char)c);
+				c = read();
+			}
+		}
+
+		//Whitespace, then optionally one '=' or ':' and more whitespace
+		while(isWhitespace(c)) c = read();
+		if (c=='=' | c==':') c = skipWhitespace();
+
+		while(c!=-1 && !isLineEnd(c)) {
+			if (c=='\\') {
+				c = readEscape(value);
+			} else {
+				value.append((char)c);
+				c = read();
+			}
+		}
+		if (c!=-1) finishLineEnd(c);
+		return true;
+	}
+
+	/**
+	 * Having just read a backslash, reads what it escapes and appends the result to dest. A backslash at the end of a line joins
+	 * the next line on, without its leading whitespace. Returns the next character after the escape.
+	 */
+	private int readEscape(StringBuilder dest) throws IOException {
+		int c = read();
+		switch(c) {
+		case -1:
+			return -1; //a lone backslash at the very end is dropped, as Properties does
+		case '\r':
+		case '\n':
+			finishLineEnd(c);
+			return skipWhitespace();
+		case 't': dest.append('\t'); break;
+		case 'n': dest.append('\n'); break;
+		case 'r': dest.append('\r'); break;
+		case 'f': dest.append('\f'); break;
+		case 'u':
+			int result = 0;
+			for(int i=0; i<4; i++) {
+				int digit = Character.digit(read(), 16);
+				if (digit<0) throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+				result = (result << 4) | digit;
+			}
+			dest.append((char)result);
+			break;
+		default:
+			dest.append((char)c);
+		}
+		return read();
+	}
+
+	/* Writing */
+
+	private void write(char c) throws IOException {
+		if (position==buffer.length) flushBuffer();
+		buffer[position++] = c;
+	}
+
+	private void flushBuffer() throws IOException {
+		out.write(buffer, 0, position);
+		position = 0;
+	}
+
+	private void writeEscaped(String s, boolean isKey) throws IOException {
+		if (s==null) return;
+		int len = s.length();
+		for(int i=0; i<len; i++) {
+			char c = s.charAt(i);
+			switch(c) {
+			case ' ':
+				//Spaces anywhere in keys, and at the start of values, would otherwise be taken as separators or trimmed.
+				if (isKey || i==0) write('\\');
+				write(' ');
+				break;
+			case '\t': write('\\'); write('t'); break;
+			case '\n': write('\\'); write('n'); break;
+			case '\r': write('\\'); write('r'); break;
+			case '\f': write('\\'); write('f'); break;
+			case '\\':
+			case '=':
+			case ':':
+			case '#':
+			case '!':
+				write('\\');
+				write(c);
+				break;
+			default:
+				if (c<0x20 | c==0x7F) {
+					write('\\');
+					write('u');
+					write(HEX[(c >> 12) & 0xF]);
+					write(HEX[(c >> 8) & 0xF]);
+					write(HEX[(c >> 4) & 0xF]);
+					write(HEX[c & 0xF]);
+				} else {
+					write(c);
+				}
+			}
+		}
+	}
+}
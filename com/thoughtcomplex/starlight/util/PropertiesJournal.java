@@ -0,0 +1,559 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a DataBoundProperties saved on disk by writing down each change as it happens, instead of rewriting the whole table. Every
+ * put, remove, clear and cell edit is appended to a log as a small record, so saving costs as much as the change did, however big
+ * the table is.
+ *
+ * <p>Records are gathered in memory and written and synced by a background thread every so often (every 100ms by default), so
+ * a burst of changes shares one fsync. A crash can lose at most the changes since the last sync; call sync to wait for everything
+ * so far to reach the disk.
+ *
+ * <p>On disk, a journal for the base file "name" is a snapshot file, "name.snapshot", plus numbered logs, "name.log.1",
+ * "name.log.2" and so on. The snapshot records which log number it was taken at. Opening a journal reads the snapshot and then
+ * replays every log from that number onwards. Once the current log grows past a threshold, or when compact is called, the journal
+ * moves on to a new log and writes a fresh snapshot in the background, after which the old logs are deleted. A crash at any point
+ * leaves either the old snapshot with all of its logs, or the new one with its own.
+ *
+ * <p>Records are replayed through the same methods that made the changes, and snapshots keep every row as it was, even rows whose
+ * keys are equal, so a journal reproduces the table row for row. Case sensitivity isn't journaled; set it on the table before
+ * opening.
+ */
+public class PropertiesJournal implements Closeable {
+	private static final int SNAPSHOT_MAGIC = ('S' << 24) | ('L' << 16) | ('J' << 8) | 1;
+	/** Frames claiming to be bigger than this are treated as damage rather than allocated. */
+	private static final int MAX_RECORD_LENGTH = 1 << 26;
+	public static final long DEFAULT_FLUSH_MILLIS = 100;
+	public static final long DEFAULT_COMPACT_THRESHOLD = 1 << 22;
+
+	private final File directory;
+	private final String baseName;
+	private final DataBoundProperties target;
+	private final ScheduledExecutorService background;
+
+	//Guarded by this. Filled on the writing thread, emptied by the background thread.
+	private final Record scratch = new Record();
+	private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(64);
+	private final CRC32 crc = new CRC32();
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+	/** Work for the background thread, in order: byte[] to append to the current log, or a Rotation. */
+	private final ArrayList<Object> outbox = new ArrayList<Object>();
+	private long generation;
+	private long logBytes = 0;
+	private long compactThreshold = DEFAULT_COMPACT_THRESHOLD;
+	private boolean rotationDue = false;
+	private Throwable failure = null;
+
+	/** The current log. Only the background thread touches this once the journal is open. */
+	private FileChannel channel;
+
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	private PropertiesJournal(File base, DataBoundProperties target, long generation) {
+		this.directory = base.getAbsoluteFile().getParentFile();
+		this.baseName = base.getName();
+		this.target = target;
+		this.generation = generation;
+		this.background = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread result = new Thread(r, "Properties Journal");
+				result.setDaemon(true);
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * Opens the journal for this base file with the default sync interval, loads it into the target, and starts journaling every
+	 * change made to the target from now on.
+	 */
+	public static PropertiesJournal open(File base, DataBoundProperties target) throws IOException {
+		return open(base, target, DEFAULT_FLUSH_MILLIS);
+	}
+
+	/**
+	 * Opens the journal for this base file, loads it into the target, and starts journaling every change made to the target from
+	 * now on. Whatever the target held before is replaced, as a single batch of changes. If there is no journal yet, one is
+	 * started, and the target is left empty.
+	 * @param flushMillis	How often, in milliseconds, gathered changes are written out and synced
+	 */
+	public static PropertiesJournal open(File base, DataBoundProperties target, long flushMillis) throws IOException {
+		if (target.journal!=null) throw new IllegalStateException("This DataBoundProperties is already being journaled.");
+		if (flushMillis<=0) throw new IllegalArgumentException("Flush interval must be positive.");
+		PropertiesJournal journal = new PropertiesJournal(base, target, 0);
+
+		target.beginUpdate();
+		try {
+			target.clear();
+			long snapshotGeneration = 0;
+			File snapshot = journal.snapshotFile();
+			if (snapshot.exists()) {
+				InputStream in = new BufferedInputStream(new FileInputStream(snapshot));
+				try {
+					if (Streamable.Helper.intFromStream(in)!=SNAPSHOT_MAGIC) throw new IOException("Not a journal snapshot: "+snapshot);
+					snapshotGeneration = Streamable.Helper.longFromStream(in);
+					target.streamFrom(in);
+				} finally {
+					in.close();
+				}
+			}
+
+			long lastGeneration = snapshotGeneration-1;
+			for(long logGeneration : journal.listLogs()) {
+				if (logGeneration<snapshotGeneration) {
+					//Left behind by a compaction which didn't get as far as cleaning up.
+					journal.logFile(logGeneration).delete();
+					continue;
+				}
+				journal.replay(journal.logFile(logGeneration));
+				lastGeneration = logGeneration;
+			}
+			//Start a fresh log rather than appending to one which may have been cut short.
+			journal.generation = Math.max(snapshotGeneration, lastGeneration+1);
+		} finally {
+			target.endUpdate();
+		}
+
+		journal.channel = openLog(journal.logFile(journal.generation));
+		target.journal = journal;
+		journal.background.scheduleWithFixedDelay(journal.drainTask, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+		return journal;
+	}
+
+	/**
+	 * Sets how large, in bytes, the current log may grow before the journal compacts: starts a new log and writes a new snapshot
+	 * in the background. Zero or less means only compacting when asked to.
+	 */
+	public synchronized void setCompactThreshold(long bytes) {
+		this.compactThreshold = bytes;
+	}
+
+	public synchronized long getCompactThreshold() {
+		return compactThreshold;
+	}
+
+	/**
+	 * Starts a new log, and writes a snapshot of the table as it stands in the background, after which the older logs are deleted.
+	 * Call sync to wait for it to finish.
+	 */
+	public void compact() {
+		target.beginUpdate(); //nothing changes, but this keeps other writers out of a ConcurrentDataBoundProperties meanwhile
+		try {
+			synchronized(this) {
+				rotate();
+			}
+		} finally {
+			target.endUpdate();
+		}
+		background.execute(drainTask);
+	}
+
+	/**
+	 * Waits until every change so far, and any compaction already asked for, is safely on disk.
+	 * @throws IOException	Thrown if the background thread has failed to write anything since the journal was opened.
+	 */
+	public void sync() throws IOException {
+		try {
+			background.submit(drainTask).get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the journal.", ex);
+		} catch (ExecutionException ex) {
+			throw new IOException("Journal failed.", ex.getCause());
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Stops journaling the table, writes out and syncs everything left, and closes the log. Changes made to the table from now on
+	 * are not saved.
+	 */
+	@Override
+	public void close() throws IOException {
+		target.beginUpdate();
+		try {
+			target.journal = null;
+		} finally {
+			target.endUpdate();
+		}
+		background.execute(drainTask);
+		background.shutdown();
+		try {
+			while(!background.awaitTermination(1, TimeUnit.SECONDS)) {}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing the journal.", ex);
+		} finally {
+			channel.close();
+		}
+		checkFailure();
+	}
+
+	/* Called by the DataBoundProperties just before it makes each change. */
+
+	synchronized void recordPut(String key, String value) {
+		scratch.set(Record.PUT, 0, 0, key, value);
+		append(scratch);
+	}
+
+	synchronized void recordRemove(String key) {
+		scratch.set(Record.REMOVE, 0, 0, key, null);
+		append(scratch);
+	}
+
+	synchronized void recordAppend(String key, String value) {
+		scratch.set(Record.APPEND, 0, 0, key, value);
+		append(scratch);
+	}
+
+	synchronized void recordCell(int row, int column, String value) {
+		scratch.set(Record.CELL, row, column, null, value);
+		append(scratch);
+	}
+
+	synchronized void recordClear() {
+		scratch.set(Record.CLEAR, 0, 0, null, null);
+		append(scratch);
+	}
+
+	private void append(Record record) {
+		//Every change before this one has been made by now, and this one hasn't yet, so this is the moment to snapshot.
+		if (rotationDue) rotate();
+
+		recordBytes.reset();
+		try {
+			record.streamTo(recordBytes);
+		} catch (IOException ex) {
+			throw new IllegalStateException("Could not encode journal record.", ex); //can't happen writing into memory
+		}
+		byte[] encoded = recordBytes.toByteArray();
+		crc.reset();
+		crc.update(encoded, 0, encoded.length);
+		writeInt(encoded.length, pending);
+		writeInt((int)crc.getValue(), pending);
+		pending.write(encoded, 0, encoded.length);
+		logBytes += 8+encoded.length;
+		if (compactThreshold>0 && logBytes>=compactThreshold) rotationDue = true;
+	}
+
+	/** Must hold the lock, and be called between changes. */
+	private void rotate() {
+		if (pending.size()>0) {
+			outbox.add(pending.toByteArray());
+			pending.reset();
+		}
+		generation++;
+		outbox.add(new Rotation(generation, target.copyRows()));
+		logBytes = 0;
+		rotationDue = false;
+	}
+
+	/**
+	 * Runs on the background thread. Anything which goes wrong is kept for sync and close to report, rather than thrown, since
+	 * throwing would quietly cancel the periodic drain.
+	 */
+	private void drain() {
+		Object[] work;
+		synchronized(this) {
+			if (pending.size()>0) {
+				outbox.add(pending.toByteArray());
+				pending.reset();
+			}
+			if (outbox.isEmpty()) return;
+			work = outbox.toArray();
+			outbox.clear();
+		}
+
+		try {
+			for(Object item : work) {
+				if (item instanceof byte[]) {
+					ByteBuffer buffer = ByteBuffer.wrap((byte[])item);
+					while(buffer.hasRemaining()) channel.write(buffer);
+				} else {
+					Rotation rotation = (Rotation)item;
+					channel.force(false);
+					channel.close();
+					channel = openLog(logFile(rotation.generation));
+					writeSnapshot(rotation);
+					for(long logGeneration : listLogs()) {
+						if (logGeneration<rotation.generation) logFile(logGeneration).delete();
+					}
+				}
+			}
+			channel.force(false);
+		} catch (Throwable t) {
+			synchronized(this) {
+				if (failure==null) failure = t;
+			}
+			if (t instanceof Error) throw (Error)t;
+		}
+	}
+
+	private void writeSnapshot(Rotation rotation) throws IOException {
+		File snapshot = snapshotFile();
+		File temp = new File(snapshot.getPath()+".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		try {
+			OutputStream out = new BufferedOutputStream(file);
+			Streamable.Helper.intToStream(SNAPSHOT_MAGIC, out);
+			Streamable.Helper.longToStream(rotation.generation, out);
+			rotation.contents.streamTo(out);
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			file.close();
+		}
+		try {
+			Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Applies every intact record in a log to the target. If the log ends partway through a record, or a record is damaged, as
+	 * happens when a crash interrupts a write, the log is cut back to the last good record.
+	 */
+	private void replay(File log) throws IOException {
+		long good = 0;
+		boolean damaged = false;
+		InputStream in = new BufferedInputStream(new FileInputStream(log));
+		try {
+			Record record = new Record();
+			byte[] frameHeader = new byte[8];
+			while(true) {
+				int headerRead = readFully(in, frameHeader);
+				if (headerRead==0) break;
+				if (headerRead<frameHeader.length) {
+					damaged = true;
+					break;
+				}
+				ByteBuffer header = ByteBuffer.wrap(frameHeader);
+				int length = header.getInt();
+				int checksum = header.getInt();
+				if (length<0 | length>MAX_RECORD_LENGTH) {
+					damaged = true;
+					break;
+				}
+				byte[] payload = new byte[length];
+				if (readFully(in, payload)<length) {
+					damaged = true;
+					break;
+				}
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int)crc.getValue()!=checksum) {
+					damaged = true;
+					break;
+				}
+				record.streamFrom(new ByteArrayInputStream(payload));
+				record.applyTo(target);
+				good += 8+length;
+			}
+		} finally {
+			in.close();
+		}
+		if (damaged) {
+			RandomAccessFile file = new RandomAccessFile(log, "rw");
+			try {
+				file.setLength(good);
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	private synchronized void checkFailure() throws IOException {
+		if (failure!=null) throw new IOException("Journal failed to write.", failure);
+	}
+
+	private File snapshotFile() {
+		return new File(directory, baseName+".snapshot");
+	}
+
+	private File logFile(long logGeneration) {
+		return new File(directory, baseName+".log."+logGeneration);
+	}
+
+	/** Returns the numbers of every log for this journal, in order. */
+	private long[] listLogs() {
+		String prefix = baseName+".log.";
+		String[] names = directory.list();
+		if (names==null) return new long[0];
+		long[] result = new long[names.length];
+		int count = 0;
+		for(String name : names) {
+			if (!name.startsWith(prefix)) continue;
+			try {
+				result[count] = Long.parseLong(name.substring(prefix.length()));
+				count++;
+			} catch (NumberFormatException ex) {} //not one of ours
+		}
+		result = Arrays.copyOf(result, count);
+		Arrays.sort(result);
+		return result;
+	}
+
+	private static FileChannel openLog(File log) throws IOException {
+		return FileChannel.open(log.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private static void writeInt(int value, OutputStream out) {
+		try {
+			Streamable.Helper.intToStream(value, out);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex); //can't happen writing into memory
+		}
+	}
+
+	/** Reads until the array is full or the stream ends, and returns how much was read. */
+	private static int readFully(InputStream in, byte[] dest) throws IOException {
+		int total = 0;
+		while(total<dest.length) {
+			int read = in.read(dest, total, dest.length-total);
+			if (read<0) break;
+			total += read;
+		}
+		return total;
+	}
+
+	/** A point at which the journal moves on to a new log, along with the table's contents at that point. */
+	private static class Rotation {
+		private final long generation;
+		private final DataBoundProperties contents;
+
+		private Rotation(long generation, DataBoundProperties contents) {
+			this.generation = generation;
+			this.contents = contents;
+		}
+	}
+
+	/**
+	 * One change to the table: an operation byte, followed by whatever that operation needs.
+	 */
+	static class Record implements Streamable {
+		static final int PUT = 1;
+		static final int REMOVE = 2;
+		static final int CELL = 3;
+		static final int CLEAR = 4;
+		static final int APPEND = 5;
+
+		private int op;
+		private int row;
+		private int column;
+		private String key;
+		private String value;
+
+		public Record() {}
+
+		void set(int op, int row, int column, String key, String value) {
+			this.op = op;
+			this.row = row;
+			this.column = column;
+			this.key = key;
+			this.value = value;
+		}
+
+		void applyTo(DataBoundProperties target) throws IOException {
+			switch(op) {
+			case PUT:
+				target.put(key, value);
+				break;
+			case REMOVE:
+				target.remove(key);
+				break;
+			case APPEND:
+				target.appendRow(key, value);
+				break;
+			case CELL:
+				if (row>=target.getRowCount()) throw new IOException("Journal refers to row "+row+", which doesn't exist.");
+				target.setValueAt(value, row, column);
+				break;
+			case CLEAR:
+				target.clear();
+				break;
+			default:
+				throw new IOException("Unknown journal record type "+op);
+			}
+		}
+
+		@Override
+		public void streamTo(OutputStream out) throws IOException {
+			Streamable.Helper.byteToStream(op, out);
+			switch(op) {
+			case PUT:
+			case APPEND:
+				Streamable.Helper.stringToStream(key, out);
+				Streamable.Helper.stringToStream(DataBoundProperties.streamableValue(value), out);
+				break;
+			case REMOVE:
+				Streamable.Helper.stringToStream(key, out);
+				break;
+			case CELL:
+				Streamable.Helper.varIntToStream(row, out);
+				Streamable.Helper.byteToStream(column, out);
+				Streamable.Helper.stringToStream(DataBoundProperties.streamableValue(value), out);
+				break;
+			default:
+				break;
+			}
+		}
+
+		@Override
+		public void streamFrom(InputStream in) throws IOException {
+			op = Streamable.Helper.byteFromStream(in);
+			key = null;
+			value = null;
+			switch(op) {
+			case PUT:
+			case APPEND:
+				key = Streamable.Helper.stringFromStream(in);
+				value = Streamable.Helper.stringFromStream(in);
+				break;
+			case REMOVE:
+				key = Streamable.Helper.stringFromStream(in);
+				break;
+			case CELL:
+				row = Streamable.Helper.varIntFromStream(in);
+				column = Streamable.Helper.byteFromStream(in);
+				value = Streamable.Helper.stringFromStream(in);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size grid of shorts, for tilemaps and other data which fits in 16 bits, at half the memory of an IntGrid. The cells are
+ * held in one flat array with no boxing, so getShort and setShort never allocate. The Collection2D methods box and unbox, for
+ * code which wants to treat every grid alike.
+ */
+public class ShortGrid extends AbstractGrid<Short> {
+	protected final short[] cells;
+
+	/** Creates a grid with every cell zero. */
+	public ShortGrid(int width, int height) {
+		super(width, height);
+		this.cells = new short[width*height];
+	}
+
+	public short getShort(int x, int y) {
+		return cells[indexOf(x, y)];
+	}
+
+	public void setShort(int x, int y, short value) {
+		cells[indexOf(x, y)] = value;
+	}
+
+	/**
+	 * Copies length cells of row y, starting at column x, into dest starting at destOffset.
+	 */
+	public void getRow(int x, int y, short[] dest, int destOffset, int length) {
+		checkRow(x, y, length);
+		System.arraycopy(cells, y*width+x, dest, destOffset, length);
+	}
+
+	/**
+	 * Copies length values from src, starting at srcOffset, into row y starting at column x.
+	 */
+	public void setRow(int x, int y, short[] src, int srcOffset, int length) {
+		checkRow(x, y, length);
+		System.arraycopy(src, srcOffset, cells, y*width+x, length);
+	}
+
+	/** Sets every cell to value. */
+	public void fill(short value) {
+		Arrays.fill(cells, value);
+	}
+
+	/**
+	 * Sets every cell of the rectangle with its top left corner at x,y to value. Any part of the rectangle outside the grid is
+	 * ignored.
+	 */
+	public void fill(int x, int y, int width, int height, short value) {
+		int minX = Math.max(x, 0);
+		int maxX = (int)Math.min((long)x+width, this.width);
+		int maxY = (int)Math.min((long)y+height, this.height);
+		if (minX>=maxX) return;
+		for(int row=Math.max(y, 0); row<maxY; row++) Arrays.fill(cells, row*this.width+minX, row*this.width+maxX, value);
+	}
+
+	/**
+	 * Visits every cell of the rectangle with its top left corner at x,y which lies inside the grid, row by row, with no boxing.
+	 * Values are widened to int.
+	 */
+	public void forEachIntIn(int x, int y, int width, int height, IntCellVisitor visitor) {
+		int minX = Math.max(x, 0);
+		int maxX = (int)Math.min((long)x+width, this.width);
+		int maxY = (int)Math.min((long)y+height, this.height);
+		for(int row=Math.max(y, 0); row<maxY; row++) {
+			int rowStart = row*this.width;
+			for(int column=minX; column<maxX; column++) visitor.visit(column, row, cells[rowStart+column]);
+		}
+	}
+
+	/** Sets every cell of row y to value. */
+	public void fillRow(int y, short value) {
+		checkRow(0, y, width);
+		Arrays.fill(cells, y*width, (y+1)*width, value);
+	}
+
+	/**
+	 * Returns the backing array, row after row, so cell x,y is at index y*getWidth()+x. Changes to it are changes to the grid.
+	 */
+	public short[] getCells() {
+		return cells;
+	}
+
+	@Override
+	public Short get(int x, int y) {
+		return cells[indexOf(x, y)];
+	}
+
+	/** Sets a cell. A null is stored as zero. */
+	@Override
+	public boolean put(Short e, int x, int y) {
+		cells[indexOf(x, y)] = (e==null) ? (short)0 : e;
+		return true;
+	}
+
+	/** Sets every cell to zero. */
+	@Override
+	public void clear() {
+		Arrays.fill(cells, (short)0);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof Short)) return false;
+		short value = (Short)o;
+		for(short cell : cells) {
+			if (cell==value) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,265 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves Streamables to disk without holding up the thread that asked for the save. The only work done on the calling thread is the
+ * capture: for a Snapshottable, a cheap private copy, and for any other Streamable, encoding it into memory. Everything else, from
+ * encoding to writing and syncing the file, happens on background threads.
+ *
+ * <p>Saves run as a two-stage pipeline, one thread for encoding and one for file I/O, sharing a pair of reusable byte buffers. So
+ * while one snapshot is being written to disk, the next can already be encoding into the other buffer. Saves always complete in the
+ * order they were requested, and each file is written to a temporary file first and then moved into place, so a crash mid-save
+ * never leaves a half-written file where the old one was.
+ *
+ * <p>Saves can optionally be compressed with a ChunkedDeflaterOutputStream, in which case the compression happens on the encoder
+ * thread as well.
+ *
+ * <p>The time spent capturing on the calling thread is recorded, so that the frame-time cost of saving can be watched.
+ */
+public class SnapshotService {
+	private static final int BUFFER_COUNT = 2;
+
+	private final ExecutorService encoder;
+	private final ExecutorService writer;
+	private final int options;
+	private volatile boolean compressed = false;
+	private final BlockingQueue<ByteArrayOutputStream> buffers = new ArrayBlockingQueue<ByteArrayOutputStream>(BUFFER_COUNT);
+
+	private volatile long lastCaptureNanos = 0;
+	private final AtomicLong totalCaptureNanos = new AtomicLong();
+	private final AtomicLong captureCount = new AtomicLong();
+
+	/** Creates a service which writes the original stream format, on its own daemon threads. */
+	public SnapshotService() {
+		this(0);
+	}
+
+	/**
+	 * Creates a service which writes streams with the given options (see StreamableOutputStream), on its own daemon threads.
+	 */
+	public SnapshotService(int options) {
+		this(options, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread result = new Thread(r, "Snapshot Service");
+				result.setDaemon(true);
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * Creates a service which writes streams with the given options, on two threads from the supplied factory. A factory for
+	 * virtual threads works just as well as one for platform threads.
+	 */
+	public SnapshotService(int options, ThreadFactory threadFactory) {
+		this.options = options;
+		this.encoder = Executors.newSingleThreadExecutor(threadFactory);
+		this.writer = Executors.newSingleThreadExecutor(threadFactory);
+		for(int i=0; i<BUFFER_COUNT; i++) buffers.add(new ByteArrayOutputStream(8192));
+	}
+
+	/**
+	 * Captures the current state of a Streamable and schedules it to be saved.
+	 * @param source		The object to save. If it is Snapshottable, only a copy is taken here; otherwise it is encoded here.
+	 * @param destination	The file to save into. Any existing file is replaced once the new one is completely written.
+	 * @return				A Future which completes with the destination once the file is safely on disk, or with the
+	 * 						IOException which stopped it from getting there.
+	 */
+	public Future<File> save(Streamable source, File destination) throws IOException {
+		long start = System.nanoTime();
+		SnapshotJob job;
+		if (source instanceof Snapshottable) {
+			job = new SnapshotJob(((Snapshottable)source).captureSnapshot(), destination, compressed);
+		} else {
+			//No cheap way to copy it, so the capture is the encoding itself.
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream(8192);
+			encode(source, encoded, compressed);
+			job = new SnapshotJob(encoded, destination);
+		}
+		long elapsed = System.nanoTime()-start;
+		lastCaptureNanos = elapsed;
+		totalCaptureNanos.addAndGet(elapsed);
+		captureCount.incrementAndGet();
+
+		final SnapshotJob toEncode = job;
+		final FutureTask<File> result = new FutureTask<File>(job);
+		encoder.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (!result.isCancelled()) toEncode.encode();
+				} finally {
+					writer.execute(new Runnable() {
+						@Override
+						public void run() {
+							//A cancelled task skips call entirely, so the buffer has to go back from out here.
+							try {
+								result.run();
+							} finally {
+								toEncode.release();
+							}
+						}
+					});
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Sets whether saves captured from now on are compressed. Compressed files must be read back through a
+	 * ChunkedInflaterInputStream.
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/** Returns how long the most recent save spent capturing on its calling thread, in nanoseconds. */
+	public long getLastCaptureNanos() {
+		return lastCaptureNanos;
+	}
+
+	/** Returns the total time every save so far has spent capturing on its calling thread, in nanoseconds. */
+	public long getTotalCaptureNanos() {
+		return totalCaptureNanos.get();
+	}
+
+	/** Returns the number of saves captured so far. */
+	public long getCaptureCount() {
+		return captureCount.get();
+	}
+
+	/**
+	 * Stops accepting saves. Any saves already requested still run to completion. Shutting down again does nothing.
+	 */
+	public synchronized void shutdown() {
+		if (encoder.isShutdown()) return;
+		//The writer has to stay open until the encoder has handed over everything it's working on.
+		encoder.execute(new Runnable() {
+			@Override
+			public void run() {
+				writer.shutdown();
+			}
+		});
+		encoder.shutdown();
+	}
+
+	private void encode(Streamable source, OutputStream destination, boolean compress) throws IOException {
+		ChunkedDeflaterOutputStream deflater = null;
+		if (compress) {
+			deflater = new ChunkedDeflaterOutputStream(destination);
+			destination = deflater;
+		}
+		StreamableOutputStream out = (options==0) ?
+				new StreamableOutputStream(destination) :
+				new StreamableOutputStream(destination, StreamableOutputStream.DEFAULT_BUFFER_SIZE, options);
+		source.streamTo(out);
+		out.flush();
+		if (deflater!=null) deflater.finish();
+	}
+
+	private static void writeAtomically(ByteArrayOutputStream data, File destination) throws IOException {
+		File temp = new File(destination.getPath()+".tmp");
+		boolean moved = false;
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				data.writeTo(out);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(temp.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(temp.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			moved = true;
+		} finally {
+			if (!moved) temp.delete(); //don't leave a partial file lying around next to the real one
+		}
+	}
+
+	private class SnapshotJob implements Callable<File> {
+		private final Streamable snapshot;
+		private final File destination;
+		private final boolean compress;
+		private ByteArrayOutputStream encoded;
+		private boolean pooled;
+		private Throwable failure;
+
+		private SnapshotJob(Streamable snapshot, File destination, boolean compress) {
+			this.snapshot = snapshot;
+			this.destination = destination;
+			this.compress = compress;
+		}
+
+		private SnapshotJob(ByteArrayOutputStream encoded, File destination) {
+			this.snapshot = null;
+			this.destination = destination;
+			this.compress = false; //already done, if it was asked for
+			this.encoded = encoded;
+		}
+
+		/**
+		 * Runs on the encoder thread. Waits for a free buffer if the writer has fallen behind. Whatever stops the encoding is kept
+		 * for call to report, so that a partly encoded buffer is never written; Errors are also thrown on from here.
+		 */
+		private void encode() {
+			if (snapshot==null) return;
+			try {
+				encoded = buffers.take();
+				pooled = true;
+				SnapshotService.this.encode(snapshot, encoded, compress);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				failure = ex;
+			} catch (Error err) {
+				failure = err;
+				throw err;
+			} catch (Throwable t) {
+				failure = t;
+			}
+		}
+
+		/** Runs on the writer thread, after encode has finished. */
+		@Override
+		public File call() throws Exception {
+			if (failure instanceof Exception) throw (Exception)failure;
+			if (failure instanceof Error) throw (Error)failure;
+			if (failure!=null) throw new IOException("Encoding the snapshot failed.", failure);
+			writeAtomically(encoded, destination);
+			return destination;
+		}
+
+		/** Runs on the writer thread once the job is over, whether it ran, failed or was cancelled. Gives back the pooled buffer. */
+		private void release() {
+			if (!pooled) return;
+			pooled = false;
+			encoded.reset();
+			buffers.add(encoded);
+		}
+	}
+}
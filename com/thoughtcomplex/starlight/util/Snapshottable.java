@@ -0,0 +1,17 @@
+package com.thoughtcomplex.starlight.util;
+
+/**
+ * Indicates that a Streamable can quickly produce a private, unchanging copy of its current state. The copy can then be written out
+ * at leisure, on another thread, while the original carries on being modified.
+ * 
+ * <p>Capturing a snapshot should be as cheap as possible, since the whole point is that it happens on a thread which can't afford to
+ * wait for a full save. Typically this means a shallow copy: immutable parts, like Strings, can be shared with the original, but
+ * anything the original might change afterwards cannot.
+ */
+public interface Snapshottable extends Streamable {
+	/**
+	 * Returns a copy of this object which will write exactly what this object would have written at the moment of the call, no
+	 * matter what happens to this object afterwards. The copy is not attached to any listeners.
+	 */
+	public Streamable captureSnapshot();
+}
@@ -0,0 +1,256 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.util.Arrays;
+
+/**
+ * A uniform spatial hash of moving points over a grid's coordinate space, for finding what's near something without checking
+ * everything against everything. The space is divided into square buckets of a fixed size, and each point is kept in the bucket it
+ * falls in; a query only has to look at the buckets it overlaps.
+ *
+ * <p>Points are identified by small non-negative ints, such as entity ids or indices into the caller's own arrays, and everything
+ * about them lives in parallel primitive arrays indexed by id: the position, and the previous and next ids in the same bucket.
+ * Each bucket is just the id at the head of its list. So moving a point within its bucket is two stores, moving it to another is
+ * a handful more, and nothing ever allocates except to grow the arrays for a larger id than before.
+ *
+ * <p>Points outside the space are kept in the nearest edge bucket, so they are still found, just less efficiently. Choose a bucket
+ * size around the typical query radius: much smaller means visiting many buckets per query, much larger means checking many
+ * points which turn out to be too far away.
+ *
+ * <p>A SpatialHash isn't thread-safe, and points shouldn't be added, moved or removed from inside a query's visitor.
+ */
+public class SpatialHash {
+	private static final int NONE = -1;
+
+	private final int bucketSize;
+	private final float inverseBucketSize;
+	private final int bucketsWide;
+	private final int bucketsHigh;
+	/** The first id in each bucket, or NONE. */
+	private final int[] heads;
+
+	/** The bucket each id is in, or NONE if it isn't in the hash. */
+	private int[] bucketOf = new int[0];
+	private int[] next = new int[0];
+	private int[] previous = new int[0];
+	private float[] xs = new float[0];
+	private float[] ys = new float[0];
+	private int size = 0;
+
+	/** Receives the points found by a query. */
+	public interface PointVisitor {
+		public void visit(int id, float x, float y);
+	}
+
+	/** Receives pairs of points which are close together, each pair once, with the smaller id first. */
+	public interface PairVisitor {
+		public void visit(int first, int second);
+	}
+
+	/**
+	 * Creates a hash over the space from 0,0 to width,height.
+	 * @param bucketSize		The width and height of each bucket, in the same units as the space
+	 */
+	public SpatialHash(int width, int height, int bucketSize) {
+		if (width<0 | height<0) throw new IllegalArgumentException("Space dimensions can't be negative.");
+		if (bucketSize<=0) throw new IllegalArgumentException("Buckets must be at least one unit across.");
+		this.bucketSize = bucketSize;
+		this.inverseBucketSize = 1f/bucketSize;
+		this.bucketsWide = Math.max(1, (int)(((long)width+bucketSize-1)/bucketSize));
+		this.bucketsHigh = Math.max(1, (int)(((long)height+bucketSize-1)/bucketSize));
+		if ((long)bucketsWide*bucketsHigh>Integer.MAX_VALUE-8) throw new IllegalArgumentException("Too many buckets; use larger ones.");
+		this.heads = new int[bucketsWide*bucketsHigh];
+		Arrays.fill(heads, NONE);
+	}
+
+	/** Creates a hash over the same space as a grid, where cell x,y covers x to x+1 and y to y+1. */
+	public SpatialHash(Collection2D<?> world, int bucketSize) {
+		this(world.getWidth(), world.getHeight(), bucketSize);
+	}
+
+	public int getBucketSize() {
+		return bucketSize;
+	}
+
+	/** Returns the number of points in the hash. */
+	public int size() {
+		return size;
+	}
+
+	public boolean contains(int id) {
+		return id>=0 && id<bucketOf.length && bucketOf[id]!=NONE;
+	}
+
+	/** Returns the x coordinate of a point in the hash. */
+	public float getX(int id) {
+		checkPresent(id);
+		return xs[id];
+	}
+
+	/** Returns the y coordinate of a point in the hash. */
+	public float getY(int id) {
+		checkPresent(id);
+		return ys[id];
+	}
+
+	/**
+	 * Adds a point, or moves it if it's already here. Moving a point within its bucket only stores the new position.
+	 */
+	public void put(int id, float x, float y) {
+		if (id<0) throw new IllegalArgumentException("Ids can't be negative.");
+		if (id>=bucketOf.length) grow(id+1);
+		xs[id] = x;
+		ys[id] = y;
+		int bucket = bucketAt(x, y);
+		int current = bucketOf[id];
+		if (current==bucket) return;
+		if (current==NONE) {
+			size++;
+		} else {
+			unlink(id, current);
+		}
+		link(id, bucket);
+	}
+
+	/** Removes a point. Returns false if it wasn't here. */
+	public boolean remove(int id) {
+		if (!contains(id)) return false;
+		unlink(id, bucketOf[id]);
+		bucketOf[id] = NONE;
+		size--;
+		return true;
+	}
+
+	/** Removes every point. The arrays keep their size, ready for the same ids to be put back. */
+	public void clear() {
+		Arrays.fill(heads, NONE);
+		Arrays.fill(bucketOf, NONE);
+		size = 0;
+	}
+
+	/**
+	 * Visits every point inside the rectangle from minX,minY to maxX,maxY, edges included, in no particular order.
+	 */
+	public void forEachIn(float minX, float minY, float maxX, float maxY, PointVisitor visitor) {
+		int firstColumn = columnOf(minX);
+		int lastColumn = columnOf(maxX);
+		int lastRow = rowOf(maxY);
+		for(int row=rowOf(minY); row<=lastRow; row++) {
+			for(int column=firstColumn; column<=lastColumn; column++) {
+				for(int id=heads[row*bucketsWide+column]; id!=NONE; id=next[id]) {
+					float x = xs[id];
+					float y = ys[id];
+					if (x>=minX & x<=maxX & y>=minY & y<=maxY) visitor.visit(id, x, y);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Visits every point within radius of centerX,centerY, in no particular order.
+	 */
+	public void forEachWithin(float centerX, float centerY, float radius, PointVisitor visitor) {
+		float radiusSquared = radius*radius;
+		int firstColumn = columnOf(centerX-radius);
+		int lastColumn = columnOf(centerX+radius);
+		int lastRow = rowOf(centerY+radius);
+		for(int row=rowOf(centerY-radius); row<=lastRow; row++) {
+			for(int column=firstColumn; column<=lastColumn; column++) {
+				for(int id=heads[row*bucketsWide+column]; id!=NONE; id=next[id]) {
+					float dx = xs[id]-centerX;
+					float dy = ys[id]-centerY;
+					if (dx*dx+dy*dy<=radiusSquared) visitor.visit(id, xs[id], ys[id]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Visits every pair of points no further apart than distance, once each. This is the broad phase of collision detection: each
+	 * point is only compared with the points in the buckets around it.
+	 */
+	public void forEachPairWithin(float distance, PairVisitor visitor) {
+		float distanceSquared = distance*distance;
+		int reach = (int)Math.min(Math.ceil(distance*inverseBucketSize), Math.max(bucketsWide, bucketsHigh));
+		for(int row=0; row<bucketsHigh; row++) {
+			for(int column=0; column<bucketsWide; column++) {
+				for(int id=heads[row*bucketsWide+column]; id!=NONE; id=next[id]) {
+					float x = xs[id];
+					float y = ys[id];
+					//Later points in the same bucket, then the buckets after this one in row order, so each pair is seen once.
+					for(int other=next[id]; other!=NONE; other=next[other]) {
+						if (isWithin(x, y, other, distanceSquared)) visitPair(id, other, visitor);
+					}
+					int lastRow = Math.min(row+reach, bucketsHigh-1);
+					int firstColumn = Math.max(column-reach, 0);
+					int lastColumn = Math.min(column+reach, bucketsWide-1);
+					for(int otherRow=row; otherRow<=lastRow; otherRow++) {
+						for(int otherColumn=(otherRow==row) ? column+1 : firstColumn; otherColumn<=lastColumn; otherColumn++) {
+							for(int other=heads[otherRow*bucketsWide+otherColumn]; other!=NONE; other=next[other]) {
+								if (isWithin(x, y, other, distanceSquared)) visitPair(id, other, visitor);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private boolean isWithin(float x, float y, int other, float distanceSquared) {
+		float dx = xs[other]-x;
+		float dy = ys[other]-y;
+		return dx*dx+dy*dy<=distanceSquared;
+	}
+
+	private static void visitPair(int a, int b, PairVisitor visitor) {
+		if (a<b) visitor.visit(a, b);
+		else visitor.visit(b, a);
+	}
+
+	/* Buckets */
+
+	private int columnOf(float x) {
+		int column = (int)(x*inverseBucketSize); //truncation is fine, since anything negative ends up in column 0 regardless
+		return (column<0) ? 0 : (column>=bucketsWide) ? bucketsWide-1 : column;
+	}
+
+	private int rowOf(float y) {
+		int row = (int)(y*inverseBucketSize);
+		return (row<0) ? 0 : (row>=bucketsHigh) ? bucketsHigh-1 : row;
+	}
+
+	private int bucketAt(float x, float y) {
+		return rowOf(y)*bucketsWide+columnOf(x);
+	}
+
+	private void link(int id, int bucket) {
+		int head = heads[bucket];
+		next[id] = head;
+		previous[id] = NONE;
+		if (head!=NONE) previous[head] = id;
+		heads[bucket] = id;
+		bucketOf[id] = bucket;
+	}
+
+	private void unlink(int id, int bucket) {
+		int before = previous[id];
+		int after = next[id];
+		if (before==NONE) heads[bucket] = after;
+		else next[before] = after;
+		if (after!=NONE) previous[after] = before;
+	}
+
+	private void checkPresent(int id) {
+		if (!contains(id)) throw new IllegalArgumentException("Point "+id+" isn't in the hash.");
+	}
+
+	private void grow(int minCapacity) {
+		int capacity = Math.max(minCapacity, Math.max(16, bucketOf.length*2));
+		int oldCapacity = bucketOf.length;
+		bucketOf = Arrays.copyOf(bucketOf, capacity);
+		Arrays.fill(bucketOf, oldCapacity, capacity, NONE);
+		next = Arrays.copyOf(next, capacity);
+		previous = Arrays.copyOf(previous, capacity);
+		xs = Arrays.copyOf(xs, capacity);
+		ys = Arrays.copyOf(ys, capacity);
+	}
+}
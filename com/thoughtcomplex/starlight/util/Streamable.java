@@ -3,6 +3,10 @@ package com.thoughtcomplex.starlight.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.nio.charset.Charset;
 
 /**
@@ -22,6 +26,10 @@ import java.nio.charset.Charset;
  * byte[]. The other is to use Streamable on the component objects as well, and to write them out with streamTo. The latter is less
  * time and resource intensive, and so it is preferred for situations when length information is not required.
  * 
+ * <p>Every Helper method works on any OutputStream or InputStream, one byte at a time. For anything large, wrap the stream in a
+ * StreamableOutputStream or StreamableInputStream first: the Helper methods notice, and read and write through their buffers in
+ * bulk. The bytes on the wire are the same either way.
+ * 
  * @author Isaac Ellingson
  */
 public interface Streamable {
@@ -50,6 +58,41 @@ public interface Streamable {
 	 * @author Isaac Ellingson
 	 */
 	public class Helper {
+		static final Charset UTF_8 = Charset.forName("UTF-8");
+		static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+		
+		/**
+		 * Each class's zero-argument constructor, looked up once and typed as ()Streamable. Null if there isn't one. Like reflection,
+		 * this reaches constructors which aren't public, and those of classes which aren't, as long as the security manager allows it.
+		 */
+		private static final ClassValue<MethodHandle> CONSTRUCTORS = new ClassValue<MethodHandle>() {
+			@Override
+			protected MethodHandle computeValue(Class<?> type) {
+				if (!Streamable.class.isAssignableFrom(type)) return null;
+				try {
+					Constructor<?> constructor = type.getDeclaredConstructor();
+					constructor.setAccessible(true);
+					return MethodHandles.lookup()
+							.unreflectConstructor(constructor)
+							.asType(MethodType.methodType(Streamable.class));
+				} catch (NoSuchMethodException ex) {
+					return null;
+				} catch (IllegalAccessException ex) {
+					return null;
+				} catch (SecurityException ex) {
+					return null;
+				}
+			}
+		};
+		
+		/**
+		 * Returns a handle to the zero-argument constructor of a Streamable class, public or not, suitable for invokeExact with no
+		 * arguments and a Streamable result, or null if the class has no such constructor. The lookup only happens once per class.
+		 */
+		static MethodHandle constructorFor(Class<?> type) {
+			return CONSTRUCTORS.get(type);
+		}
+		
 		/**
 		 * Reads a Streamable from the stream. Due to type erasure, this method cannot ever work with Generic types. In those cases it
 		 * is necessary to manually instance the object and call StreamFrom.
@@ -58,11 +101,15 @@ public interface Streamable {
 		 * @return
 		 */
 		public static <T extends Streamable> T streamFrom(Class<T> classToStream, InputStream in) {
+			MethodHandle constructor = constructorFor(classToStream);
+			if (constructor==null) return null;
 			try {
-				T result = classToStream.newInstance();
+				T result = classToStream.cast((Streamable)constructor.invokeExact());
 				result.streamFrom(in);
 				return result;
-			} catch (Exception ex) {
+			} catch (Error err) {
+				throw err;
+			} catch (Throwable t) {
 				return null;
 			}
 		}
@@ -74,11 +121,23 @@ public interface Streamable {
 		}
 		
 		public static void shortToStream(int value, OutputStream out) throws IOException {
+			if (out instanceof StreamableOutputStream) {
+				StreamableOutputStream stream = (StreamableOutputStream)out;
+				if (stream.isCompact()) stream.writeVarInt(value & 0xFFFF);
+				else stream.writeShort(value);
+				return;
+			}
 			out.write((value >> 8) & 0xFF);
 			out.write(value & 0xFF);
 		}
 		
 		public static void intToStream(int value, OutputStream out) throws IOException {
+			if (out instanceof StreamableOutputStream) {
+				StreamableOutputStream stream = (StreamableOutputStream)out;
+				if (stream.isCompact()) stream.writeSignedVarInt(value);
+				else stream.writeInt(value);
+				return;
+			}
 			out.write((value >> 24) & 0xFF);
 			out.write((value >> 16) & 0xFF);
 			out.write((value >> 8) & 0xFF);
@@ -86,6 +145,12 @@ public interface Streamable {
 		}
 		
 		public static void longToStream(long value, OutputStream out) throws IOException {
+			if (out instanceof StreamableOutputStream) {
+				StreamableOutputStream stream = (StreamableOutputStream)out;
+				if (stream.isCompact()) stream.writeSignedVarLong(value);
+				else stream.writeLong(value);
+				return;
+			}
 			out.write((int)((value >> 56) & 0xFF));
 			out.write((int)((value >> 48) & 0xFF));
 			out.write((int)((value >> 40) & 0xFF));
@@ -97,16 +162,45 @@ public interface Streamable {
 		}
 		
 		public static void floatToStream(float value, OutputStream out) throws IOException {
+			if (out instanceof StreamableOutputStream) {
+				((StreamableOutputStream)out).writeFloat(value);
+				return;
+			}
 			intToStream(Float.floatToIntBits(value),out);
 		}
 		
 		public static void doubleToStream(double value, OutputStream out) throws IOException {
+			if (out instanceof StreamableOutputStream) {
+				((StreamableOutputStream)out).writeDouble(value);
+				return;
+			}
 			longToStream(Double.doubleToLongBits(value),out);
 		}
 		
+		/**
+		 * Writes an unsigned variable-length int: seven bits per byte, least significant first, with the high bit set on every byte
+		 * but the last. This is always variable-length, whatever format the stream is in, so it's handy for counts and lengths which
+		 * are usually small.
+		 */
+		public static void varIntToStream(int value, OutputStream out) throws IOException {
+			if (out instanceof StreamableOutputStream) {
+				((StreamableOutputStream)out).writeVarInt(value);
+				return;
+			}
+			while((value & ~0x7F)!=0) {
+				out.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+		
 		public static void shortStringToStream(String value, OutputStream out) throws IOException {
+			if (out instanceof StreamableOutputStream) {
+				((StreamableOutputStream)out).writeShortString(value);
+				return;
+			}
 			shortToStream(value.length(),out);
-			out.write(value.getBytes(Charset.forName("UTF-8")));
+			out.write(value.getBytes(UTF_8));
 		}
 		
 		/**
@@ -117,8 +211,12 @@ public interface Streamable {
 		 * @throws IOException
 		 */
 		public static void stringToStream(String value, OutputStream out) throws IOException {
+			if (out instanceof StreamableOutputStream) {
+				((StreamableOutputStream)out).writeString(value);
+				return;
+			}
 			intToStream(value.length(),out);
-			byte[] stringBytes = value.getBytes(Charset.forName("UTF-16BE"));
+			byte[] stringBytes = value.getBytes(UTF_16BE);
 			out.write(stringBytes);
 			//System.out.println("Writing "+value.length()+" characters ("+stringBytes.length+" bytes)");
 			//System.out.println("Extra Two Bytes: "+(stringBytes[0]<<8+stringBytes[1]));
@@ -141,12 +239,20 @@ public interface Streamable {
 		 * @throws IOException
 		 */
 		public static int shortFromStream(InputStream in) throws IOException {
+			if (in instanceof StreamableInputStream) {
+				StreamableInputStream stream = (StreamableInputStream)in;
+				return (stream.isCompact()) ? stream.readVarInt() & 0xFFFF : stream.readUnsignedShort();
+			}
 			int resultHigh = in.read(); if (resultHigh==-1) return -1;
 			int resultLow = in.read(); if (resultLow==-1) return -1;
 			return resultLow | (resultHigh << 8);
 		}
 		
 		public static int intFromStream(InputStream in) throws IOException {
+			if (in instanceof StreamableInputStream) {
+				StreamableInputStream stream = (StreamableInputStream)in;
+				return (stream.isCompact()) ? stream.readSignedVarInt() : stream.readInt();
+			}
 			//Did I just make a generic "read X bytes from stream" method? I think I did!
 			int total = 0;
 			for(int i=3; i>=0; i--) {
@@ -158,6 +264,10 @@ public interface Streamable {
 		}
 		
 		public static long longFromStream(InputStream in) throws IOException {
+			if (in instanceof StreamableInputStream) {
+				StreamableInputStream stream = (StreamableInputStream)in;
+				return (stream.isCompact()) ? stream.readSignedVarLong() : stream.readLong();
+			}
 			//Did I just make a generic "read X bytes from stream" method? I think I did!
 			long total = 0;
 			for(int i=7; i>=0; i--) {
@@ -169,29 +279,61 @@ public interface Streamable {
 		}
 		
 		public static float floatFromStream(InputStream in) throws IOException {
+			if (in instanceof StreamableInputStream) return ((StreamableInputStream)in).readFloat();
 			return Float.intBitsToFloat(intFromStream(in));
 		}
 		
 		public static double doubleFromStream(InputStream in) throws IOException {
+			if (in instanceof StreamableInputStream) return ((StreamableInputStream)in).readDouble();
 			return Double.longBitsToDouble(longFromStream(in));
 		}
 		
+		/**
+		 * Reads an unsigned variable-length int written by varIntToStream. Returns -1 if the stream ends partway through.
+		 */
+		public static int varIntFromStream(InputStream in) throws IOException {
+			if (in instanceof StreamableInputStream) return ((StreamableInputStream)in).readVarInt();
+			int result = 0;
+			for(int shift=0; shift<35; shift+=7) {
+				int curByte = in.read();
+				if (curByte==-1) return -1; //no reward given for partial data.
+				result |= (curByte & 0x7F) << shift;
+				if ((curByte & 0x80)==0) return result;
+			}
+			throw new IOException("Malformed variable-length int");
+		}
+		
 		public static String shortStringFromStream(InputStream in) throws IOException {
+			if (in instanceof StreamableInputStream) return ((StreamableInputStream)in).readShortString();
 			int len = shortFromStream(in);
 			if (len<=0) return "";
 			byte[] raw = new byte[len];
-			int bytesReturned = in.read(raw);
-			if (bytesReturned<len) return ""; //incomplete data is ignored
-			return new String(raw,Charset.forName("UTF-8")); //We're in trouble if UTF-8 isn't supported.
+			if (!readFully(raw, in)) return ""; //incomplete data is ignored
+			return new String(raw,UTF_8);
 		}
 		
 		public static String stringFromStream(InputStream in) throws IOException {
+			if (in instanceof StreamableInputStream) return ((StreamableInputStream)in).readString();
 			int len = intFromStream(in);
 			if (len<=0) return "";
 			byte[] raw = new byte[len*2];
-			int bytesReturned = in.read(raw);
-			if (bytesReturned<len*2) return ""; //incomplete data is ignored
-			return new String(raw,Charset.forName("UTF-16BE")); //We're in trouble if UTF-8 isn't supported.
+			if (!readFully(raw, in)) return ""; //incomplete data is ignored
+			return new String(raw,UTF_16BE);
+		}
+		
+		/**
+		 * InputStream.read(byte[]) is allowed to stop short whenever it likes, even in the middle of perfectly good data, so keep
+		 * reading until the array is full or the stream actually ends.
+		 * @return true if the array was filled, false if the stream ended first
+		 */
+		private static boolean readFully(byte[] dest, InputStream in) throws IOException {
+			int total = 0;
+			while(total<dest.length) {
+				int bytesReturned = in.read(dest, total, dest.length-total);
+				if (bytesReturned<0) return false;
+				total += bytesReturned;
+			}
+			return true;
 		}
 	}
 }
@@ -0,0 +1,369 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A single file holding many named Streamables, any one of which can be read or replaced without touching the others.
+ *
+ * <p>Entries are stored one after another, and an index records each entry's name, offset, length and CRC32. The index is read
+ * once when the archive is opened, so finding an entry is a hash lookup and reading it is a single positioned read (or, for large
+ * entries, a memory mapping) which is checked against its CRC.
+ *
+ * <p>Nothing already in the file is ever overwritten except the header. Writing an entry appends its data to the end of the file,
+ * and flush appends a new index after it, forces everything to disk, and only then points the header at the new index. Until that
+ * last small write, the header still points at the old index, which still describes the old entries, so a crash or a failed flush
+ * at any moment leaves the archive as it was at the last flush. Entries written since then are lost, so flush after any batch of
+ * writes which matters. Replaced or removed entries, and old indexes, stay behind as dead space, which compact reclaims.
+ *
+ * <p>The layout is a header of three magic bytes ('S', 'L', 'A') and a version byte, then the offset of the current index as a
+ * long, its length as an int and its CRC32 as an int; then entry data and indexes, in the order they were written. An index is
+ * itself a Streamable stream in the compact format.
+ */
+public class StreamableArchive implements Closeable {
+	private static final int MAGIC = ('S' << 24) | ('L' << 16) | ('A' << 8) | 2;
+	private static final int HEADER_LENGTH = 20;
+	/** Entries at least this large are mapped instead of copied into the heap. */
+	private static final int MAP_THRESHOLD = 1 << 18;
+
+	private final File file;
+	private final int options;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private final LinkedHashMap<String, Location> entries = new LinkedHashMap<String, Location>();
+	/** Where the next entry or index will be written: the end of everything written so far. */
+	private long dataEnd = HEADER_LENGTH;
+	/** The length of the index the header points at, which becomes dead space once a new one replaces it. */
+	private int indexLength = 0;
+	private long wastedBytes = 0;
+	private boolean dirty = false;
+
+	private StreamableArchive(File file, int options) {
+		this.file = file;
+		this.options = options;
+	}
+
+	/**
+	 * Opens an archive, creating it if the file doesn't exist yet. New entries are written in the original stream format.
+	 */
+	public static StreamableArchive open(File file) throws IOException {
+		return open(file, 0);
+	}
+
+	/**
+	 * Opens an archive, creating it if the file doesn't exist yet. A new archive is flushed straight away, empty, so that it can be
+	 * opened again whatever happens next.
+	 * @param file			The archive file
+	 * @param options		The stream options (see StreamableOutputStream) to write new entries with. Existing entries are read
+	 * 						with whatever options they were written with.
+	 * @throws IOException	Thrown if the file exists but isn't a valid archive.
+	 */
+	public static StreamableArchive open(File file, int options) throws IOException {
+		StreamableArchive result = new StreamableArchive(file, options);
+		result.openChannel();
+		try {
+			if (result.channel.size()==0) {
+				result.writeHeader(0L, 0, 0);
+				result.dirty = true;
+				result.flush();
+			} else {
+				result.readIndex();
+			}
+		} catch (IOException ex) {
+			result.raf.close();
+			throw ex;
+		}
+		return result;
+	}
+
+	/** Returns true if there is an entry with this name. */
+	public synchronized boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	/** Returns the names of every entry, in the order they were first written. */
+	public synchronized Set<String> names() {
+		return Collections.unmodifiableSet(new LinkedHashSet<String>(entries.keySet()));
+	}
+
+	/** Returns the number of entries. */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/** Returns the number of bytes in the file taken up by replaced or removed entries. */
+	public synchronized long getWastedBytes() {
+		return wastedBytes;
+	}
+
+	/**
+	 * Reads an entry into an existing object, by way of its streamFrom method.
+	 * @return				false if there is no entry with this name, in which case the target is left alone
+	 * @throws IOException	Thrown if the entry can't be read, or fails its CRC check.
+	 */
+	public boolean read(String name, Streamable target) throws IOException {
+		StreamableInputStream in = openEntry(name);
+		if (in==null) return false;
+		target.streamFrom(in);
+		return true;
+	}
+
+	/**
+	 * Returns a stream over an entry's data, with any stream header already read, or null if there is no entry with this name.
+	 * The whole entry is read and checked against its CRC before this returns.
+	 */
+	public StreamableInputStream openEntry(String name) throws IOException {
+		ByteBuffer data;
+		synchronized(this) {
+			Location entry = entries.get(name);
+			if (entry==null) return null;
+			data = readEntry(entry);
+		}
+		StreamableInputStream result = new StreamableInputStream(data);
+		result.readHeader();
+		return result;
+	}
+
+	/**
+	 * Writes an entry, replacing any existing entry with the same name.
+	 */
+	public void write(String name, Streamable value) throws IOException {
+		if (name==null) throw new IllegalArgumentException("Entry name cannot be null.");
+		//Encode outside the lock; only the file write needs it.
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(4096);
+		StreamableOutputStream out = (options==0) ?
+				new StreamableOutputStream(encoded) :
+				new StreamableOutputStream(encoded, StreamableOutputStream.DEFAULT_BUFFER_SIZE, options);
+		value.streamTo(out);
+		out.flush();
+		byte[] data = encoded.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+
+		synchronized(this) {
+			long offset = dataEnd;
+			writeFully(ByteBuffer.wrap(data), offset);
+			dataEnd += data.length;
+			Location old = entries.put(name, new Location(offset, data.length, (int)crc.getValue()));
+			if (old!=null) wastedBytes += old.length;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Removes an entry. Its data stays in the file as dead space until the archive is compacted.
+	 * @return				true if there was an entry to remove
+	 */
+	public synchronized boolean remove(String name) {
+		Location old = entries.remove(name);
+		if (old==null) return false;
+		wastedBytes += old.length;
+		dirty = true;
+		return true;
+	}
+
+	/**
+	 * Commits everything written so far. The new index is appended and forced to disk before the header is switched over to it,
+	 * so if this fails or is interrupted, the archive still opens as it was at the last successful flush.
+	 */
+	public synchronized void flush() throws IOException {
+		if (!dirty) return;
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(64 + entries.size()*32);
+		StreamableOutputStream out = StreamableOutputStream.compact(encoded);
+		Streamable.Helper.intToStream(entries.size(), out);
+		for(Map.Entry<String, Location> cur : entries.entrySet()) {
+			Location entry = cur.getValue();
+			Streamable.Helper.stringToStream(cur.getKey(), out);
+			Streamable.Helper.longToStream(entry.offset, out);
+			Streamable.Helper.intToStream(entry.length, out);
+			out.writeInt(entry.crc);
+		}
+		out.flush();
+		byte[] index = encoded.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(index, 0, index.length);
+
+		long indexOffset = dataEnd;
+		writeFully(ByteBuffer.wrap(index), indexOffset);
+		dataEnd += index.length;
+		channel.force(true); //the entries and the new index must be on disk before anything points at them
+		writeHeader(indexOffset, index.length, (int)crc.getValue());
+		channel.force(true);
+		wastedBytes += indexLength;
+		indexLength = index.length;
+		dirty = false;
+	}
+
+	/**
+	 * Rewrites the archive without any dead space. The new file is written alongside the old one and then moved over it, so the
+	 * archive is never left half-compacted.
+	 */
+	public synchronized void compact() throws IOException {
+		File temp = new File(file.getPath()+".tmp");
+		StreamableArchive compacted = new StreamableArchive(temp, options);
+		if (temp.exists() && !temp.delete()) throw new IOException("Can't remove stale temporary file "+temp);
+		compacted.openChannel();
+		try {
+			compacted.writeHeader(0L, 0, 0);
+			for(Map.Entry<String, Location> cur : entries.entrySet()) {
+				Location entry = cur.getValue();
+				//Copied as raw bytes, so the CRC carries over without decoding anything.
+				long offset = compacted.dataEnd;
+				long copied = 0;
+				while(copied<entry.length) {
+					copied += channel.transferTo(entry.offset+copied, entry.length-copied, compacted.channel.position(offset+copied));
+				}
+				compacted.dataEnd += entry.length;
+				compacted.entries.put(cur.getKey(), new Location(offset, entry.length, entry.crc));
+			}
+			compacted.dirty = true;
+			compacted.flush();
+		} finally {
+			compacted.raf.close();
+		}
+
+		raf.close();
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			openChannel(); //whichever file ended up there
+		}
+		entries.clear();
+		entries.putAll(compacted.entries);
+		dataEnd = compacted.dataEnd;
+		indexLength = compacted.indexLength;
+		wastedBytes = 0;
+		dirty = false;
+	}
+
+	/**
+	 * Flushes the index if anything has changed, and closes the file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void openChannel() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+	}
+
+	/** Writes the header, pointing at an index. An index length of zero means the archive has never been flushed. */
+	private void writeHeader(long indexOffset, int indexLength, int indexCrc) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC);
+		header.putLong(indexOffset);
+		header.putInt(indexLength);
+		header.putInt(indexCrc);
+		header.flip();
+		writeFully(header, 0);
+		if (dataEnd<HEADER_LENGTH) dataEnd = HEADER_LENGTH;
+	}
+
+	private void readIndex() throws IOException {
+		long size = channel.size();
+		if (size<HEADER_LENGTH) throw new IOException("Not an archive: "+file);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		readFully(header, 0);
+		if (header.getInt(0)!=MAGIC) throw new IOException("Not an archive, or from a different version: "+file);
+		long indexOffset = header.getLong(4);
+		int indexLength = header.getInt(12);
+		int indexCrc = header.getInt(16);
+		if (indexOffset==0L && indexLength==0) {
+			//Created, but the first flush never finished, so there's nothing in it.
+			dataEnd = size;
+			wastedBytes = size-HEADER_LENGTH;
+			return;
+		}
+		if (indexOffset<HEADER_LENGTH | indexLength<=0 || indexOffset+indexLength>size) {
+			throw new IOException("Archive index is missing or damaged: "+file);
+		}
+
+		ByteBuffer index = ByteBuffer.allocate(indexLength);
+		readFully(index, indexOffset);
+		CRC32 check = new CRC32();
+		check.update(index.array(), 0, indexLength);
+		if ((int)check.getValue()!=indexCrc) throw new IOException("Archive index is missing or damaged: "+file);
+		StreamableInputStream in = new StreamableInputStream(index);
+		in.readHeader();
+		int count = Streamable.Helper.intFromStream(in);
+		for(int i=0; i<count; i++) {
+			String name = Streamable.Helper.stringFromStream(in);
+			long offset = Streamable.Helper.longFromStream(in);
+			int length = Streamable.Helper.intFromStream(in);
+			int crc = in.readInt();
+			if (offset<HEADER_LENGTH | length<0 | offset+length>indexOffset) throw new IOException("Archive entry "+name+" is out of bounds.");
+			entries.put(name, new Location(offset, length, crc));
+		}
+
+		//Anything after the index was written by a flush which never finished, and is dead space along with everything else.
+		dataEnd = size;
+		this.indexLength = indexLength;
+		long live = 0;
+		for(Location entry : entries.values()) live += entry.length;
+		wastedBytes = Math.max(0, dataEnd-HEADER_LENGTH-indexLength-live);
+	}
+
+	private ByteBuffer readEntry(Location entry) throws IOException {
+		ByteBuffer data;
+		if (entry.length>=MAP_THRESHOLD) {
+			data = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+		} else {
+			data = ByteBuffer.allocate(entry.length);
+			readFully(data, entry.offset);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data.duplicate());
+		if ((int)crc.getValue()!=entry.crc) throw new IOException("Archive entry failed its CRC check.");
+		return data;
+	}
+
+	private void readFully(ByteBuffer dest, long position) throws IOException {
+		while(dest.hasRemaining()) {
+			int read = channel.read(dest, position);
+			if (read<0) throw new EOFException();
+			position += read;
+		}
+		dest.flip();
+	}
+
+	private void writeFully(ByteBuffer source, long position) throws IOException {
+		while(source.hasRemaining()) {
+			position += channel.write(source, position);
+		}
+	}
+
+	private static class Location {
+		private final long offset;
+		private final int length;
+		private final int crc;
+
+		private Location(long offset, int length, int crc) {
+			this.offset = offset;
+			this.length = length;
+			this.crc = crc;
+		}
+	}
+}
@@ -0,0 +1,437 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A buffered InputStream for reading Streamable data. Bytes are pulled from the underlying stream in large blocks and primitives
+ * are decoded from an internal ByteBuffer, instead of one virtual read call per byte. Strings are decoded through reusable scratch
+ * arrays, so the only allocation per String is the String itself.
+ *
+ * <p>This reads exactly the format Streamable.Helper writes, and Streamable.Helper takes the fast path through it automatically,
+ * so existing streamFrom implementations can be handed one of these unchanged. The one difference is in how truncated data is
+ * reported: where the Helper methods return -1 or "" for a stream that runs out partway through a value, this class follows the
+ * DataInput contract and throws an EOFException.
+ *
+ * <p>A StreamableInputStream can also be laid directly over a ByteBuffer which already holds the whole of the data, such as a
+ * memory-mapped file (see MappedStreamableReader) or a decompressed block. In that case there is no underlying stream at all,
+ * and everything is decoded in place without being copied.
+ *
+ * <p>To read a stream which may have been written with options (see StreamableOutputStream), create it with open, or call
+ * readHeader before reading anything else.
+ */
+public class StreamableInputStream extends InputStream implements DataInput {
+	private final InputStream in; //null when reading from a ByteBuffer
+	final ByteBuffer buffer;
+	private byte[] byteScratch = new byte[64];
+	private char[] charScratch = new char[64];
+	private int options = 0;
+	private ArrayList<String> stringTable = null;
+
+	public StreamableInputStream(InputStream in) {
+		this(in, StreamableOutputStream.DEFAULT_BUFFER_SIZE);
+	}
+
+	public StreamableInputStream(InputStream in, int bufferSize) {
+		if (in==null) throw new IllegalArgumentException("Cannot read from a null stream.");
+		this.in = in;
+		this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 16));
+		buffer.limit(0); //Nothing has been read yet
+	}
+	
+	/**
+	 * Reads from the remaining bytes of a ByteBuffer, without copying them. The source buffer's own position is left alone, and
+	 * its byte order doesn't matter; Streamable data is always big-endian.
+	 */
+	public StreamableInputStream(ByteBuffer source) {
+		this.in = null;
+		this.buffer = source.slice(); //slices always start out big-endian
+	}
+
+	/**
+	 * Wraps a stream, and reads its header if it has one.
+	 */
+	public static StreamableInputStream open(InputStream in) throws IOException {
+		StreamableInputStream result = new StreamableInputStream(in);
+		result.readHeader();
+		return result;
+	}
+
+	/**
+	 * Checks for a stream header at the current position. If there is one, it is consumed and its options apply to everything read
+	 * afterwards. If not, nothing is consumed, and the data is read in the original format. This only waits on the underlying
+	 * stream for as many bytes as it takes to tell, so a short message without a header on a socket or pipe doesn't block it.
+	 * @return					true if a header was found
+	 * @throws IOException		Thrown if the header is from a newer format version, or names options this version doesn't know.
+	 */
+	public boolean readHeader() throws IOException {
+		if (!peekMatches(0, StreamableOutputStream.MAGIC_0) ||
+			!peekMatches(1, StreamableOutputStream.MAGIC_1) ||
+			!peekMatches(2, StreamableOutputStream.MAGIC_2)) return false;
+		//It's a header, so the rest of it is coming.
+		if (buffer.remaining()<StreamableOutputStream.HEADER_LENGTH && !fill(StreamableOutputStream.HEADER_LENGTH)) return false;
+		int pos = buffer.position();
+		int version = buffer.get(pos+3) & 0xFF;
+		int headerOptions = buffer.get(pos+4) & 0xFF;
+		if (version>StreamableOutputStream.FORMAT_VERSION) throw new IOException("Unsupported stream format version "+version);
+		if ((headerOptions & ~StreamableOutputStream.KNOWN_OPTIONS)!=0) {
+			throw new IOException("Unsupported stream options: "+Integer.toHexString(headerOptions));
+		}
+		buffer.position(pos+StreamableOutputStream.HEADER_LENGTH);
+		options = headerOptions;
+		if ((options & StreamableOutputStream.STRING_TABLE)!=0) stringTable = new ArrayList<String>();
+		return true;
+	}
+
+	/** Returns true if the byte this far ahead of the current position is this one, reading no further ahead than it. */
+	private boolean peekMatches(int ahead, int expected) throws IOException {
+		if (buffer.remaining()<=ahead && !fill(ahead+1)) return false;
+		return (buffer.get(buffer.position()+ahead) & 0xFF)==expected;
+	}
+
+	/** Returns true if this stream has a string table, so that repeated Strings are read back as the same instance. */
+	public boolean hasStringTable() {
+		return stringTable!=null;
+	}
+
+	/** Returns true if this stream is being read in the compact format. */
+	public boolean isCompact() {
+		return (options & StreamableOutputStream.COMPACT)!=0;
+	}
+
+	/** Makes sure at least this many bytes (never more than a single encoded value) are sitting in the buffer. */
+	private void require(int bytes) throws IOException {
+		if (buffer.remaining()<bytes && !fill(bytes)) throw new EOFException();
+	}
+
+	/**
+	 * Tops up the buffer from the underlying stream until it holds at least the requested number of bytes.
+	 * @return false if the stream ended first
+	 */
+	private boolean fill(int bytes) throws IOException {
+		if (in==null) return false;
+		buffer.compact();
+		try {
+			while(buffer.position()<bytes) {
+				int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+				if (read<0) return false;
+				buffer.position(buffer.position()+read);
+			}
+			return true;
+		} finally {
+			buffer.flip();
+		}
+	}
+
+	//## InputStream ##
+
+	@Override
+	public int read() throws IOException {
+		if (!buffer.hasRemaining() && !fill(1)) return -1;
+		return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len==0) return 0;
+		if (!buffer.hasRemaining()) {
+			//Big reads skip the copy through the buffer entirely.
+			if (in!=null && len>=buffer.capacity()) return in.read(b, off, len);
+			if (!fill(1)) return -1;
+		}
+		int count = Math.min(len, buffer.remaining());
+		buffer.get(b, off, count);
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n<=0) return 0;
+		int buffered = (int)Math.min(n, buffer.remaining());
+		buffer.position(buffer.position()+buffered);
+		if (buffered==n || in==null) return buffered;
+		return buffered + in.skip(n-buffered);
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (in==null) return buffer.remaining();
+		return buffer.remaining() + in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in!=null) in.close();
+	}
+
+	//## DataInput ##
+
+	@Override
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+
+	@Override
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		while(len>0) {
+			int read = read(b, off, len);
+			if (read<0) throw new EOFException();
+			off += read;
+			len -= read;
+		}
+	}
+
+	@Override
+	public int skipBytes(int n) throws IOException {
+		int total = 0;
+		while(total<n) {
+			long skipped = skip(n-total);
+			if (skipped<=0) {
+				//Some streams won't skip; fall back on reading.
+				if (read()<0) break;
+				skipped = 1;
+			}
+			total += skipped;
+		}
+		return total;
+	}
+
+	@Override
+	public boolean readBoolean() throws IOException {
+		require(1);
+		return buffer.get()!=0;
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		require(1);
+		return buffer.get();
+	}
+
+	@Override
+	public int readUnsignedByte() throws IOException {
+		require(1);
+		return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		require(2);
+		return buffer.getShort();
+	}
+
+	@Override
+	public int readUnsignedShort() throws IOException {
+		require(2);
+		return buffer.getShort() & 0xFFFF;
+	}
+
+	@Override
+	public char readChar() throws IOException {
+		require(2);
+		return buffer.getChar();
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		require(4);
+		return buffer.getInt();
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		require(8);
+		return buffer.getLong();
+	}
+
+	@Override
+	public float readFloat() throws IOException {
+		require(4);
+		return buffer.getFloat();
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		require(8);
+		return buffer.getDouble();
+	}
+
+	/**
+	 * Reads characters up to the next line terminator. Like DataInputStream.readLine, this assumes every byte is one character.
+	 */
+	@Override
+	public String readLine() throws IOException {
+		StringBuilder result = new StringBuilder();
+		int cur = read();
+		if (cur<0) return null;
+		while(cur>=0 && cur!='\n') {
+			if (cur=='\r') {
+				if (!buffer.hasRemaining()) fill(1);
+				if (buffer.hasRemaining() && buffer.get(buffer.position())=='\n') buffer.get();
+				break;
+			}
+			result.append((char)cur);
+			cur = read();
+		}
+		return result.toString();
+	}
+
+	@Override
+	public String readUTF() throws IOException {
+		return DataInputStream.readUTF(this);
+	}
+
+	//## Variable-length integers ##
+
+	/** Reads an unsigned variable-length int, as written by StreamableOutputStream.writeVarInt. */
+	public int readVarInt() throws IOException {
+		//One byte at a time: topping the buffer up to the longest varint first would block on a stream that has sent a short one.
+		int result = 0;
+		for(int shift=0; shift<35; shift+=7) {
+			require(1);
+			byte b = buffer.get();
+			result |= (b & 0x7F) << shift;
+			if (b>=0) return result;
+		}
+		throw new IOException("Malformed variable-length int");
+	}
+
+	/** Reads an unsigned variable-length long, as written by StreamableOutputStream.writeVarLong. */
+	public long readVarLong() throws IOException {
+		long result = 0;
+		for(int shift=0; shift<70; shift+=7) {
+			require(1);
+			byte b = buffer.get();
+			result |= (long)(b & 0x7F) << shift;
+			if (b>=0) return result;
+		}
+		throw new IOException("Malformed variable-length long");
+	}
+
+	/** Reads a zig-zag encoded variable-length int, as written by StreamableOutputStream.writeSignedVarInt. */
+	public int readSignedVarInt() throws IOException {
+		int raw = readVarInt();
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+
+	/** Reads a zig-zag encoded variable-length long, as written by StreamableOutputStream.writeSignedVarLong. */
+	public long readSignedVarLong() throws IOException {
+		long raw = readVarLong();
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+
+	//## Streamable formats ##
+
+	/**
+	 * Reads a String in the format written by Streamable.Helper.stringToStream. If the stream has a string table, repeats of a
+	 * String come back as the same instance.
+	 */
+	public String readString() throws IOException {
+		int prefix = readStringPrefix();
+		if (prefix<0 && stringTable!=null) {
+			int index = -1-prefix;
+			if (index>=stringTable.size()) throw new IOException("String table reference "+index+" is out of range.");
+			return stringTable.get(index);
+		}
+		if (prefix<=0) return "";
+		String result = (isCompact()) ? readUTF8(prefix) : readChars(prefix);
+		if (stringTable!=null && stringTable.size()<StreamableOutputStream.STRING_TABLE_LIMIT) stringTable.add(result);
+		return result;
+	}
+
+	private int readStringPrefix() throws IOException {
+		if (!isCompact()) return readInt();
+		if (stringTable!=null) return readSignedVarInt();
+		return readVarInt();
+	}
+
+	/**
+	 * Reads a String in the format written by Streamable.Helper.shortStringToStream.
+	 */
+	public String readShortString() throws IOException {
+		if (isCompact() || stringTable!=null) return readString();
+		return readUTF8(readUnsignedShort());
+	}
+
+	/**
+	 * Skips over a String written by Streamable.Helper.stringToStream without decoding it. With a string table, the String has to
+	 * be decoded anyway, in case something later refers back to it.
+	 */
+	public void skipString() throws IOException {
+		if (stringTable!=null) {
+			readString();
+			return;
+		}
+		if (isCompact()) {
+			skipFully(readVarInt() & 0xFFFFFFFFL);
+			return;
+		}
+		int len = readInt();
+		if (len<=0) return;
+		skipFully(len*2L);
+	}
+
+	/**
+	 * Skips over a String written by Streamable.Helper.shortStringToStream without decoding it.
+	 */
+	public void skipShortString() throws IOException {
+		if (stringTable!=null) {
+			readString();
+			return;
+		}
+		if (isCompact()) {
+			skipFully(readVarInt() & 0xFFFFFFFFL);
+			return;
+		}
+		skipFully(readUnsignedShort());
+	}
+
+	/** Decodes len bytes of UTF-8 through the scratch array. */
+	private String readUTF8(int len) throws IOException {
+		if (len<=0) return "";
+		byte[] raw = byteScratch(len);
+		readFully(raw, 0, len);
+		return new String(raw, 0, len, Streamable.Helper.UTF_8);
+	}
+
+	/**
+	 * Skips exactly this many bytes, or throws an EOFException if there aren't that many left.
+	 */
+	public void skipFully(long n) throws IOException {
+		while(n>0) {
+			long skipped = skip(n);
+			if (skipped<=0) {
+				if (read()<0) throw new EOFException();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	/** Decodes len UTF-16BE characters straight out of the buffer. */
+	private String readChars(int len) throws IOException {
+		char[] chars = charScratch(len);
+		int i = 0;
+		while(i<len) {
+			require(2);
+			int end = Math.min(len, i+(buffer.remaining()/2));
+			for(; i<end; i++) chars[i] = buffer.getChar();
+		}
+		return new String(chars, 0, len);
+	}
+
+	private byte[] byteScratch(int size) {
+		if (byteScratch.length<size) byteScratch = new byte[Math.max(size, byteScratch.length*2)];
+		return byteScratch;
+	}
+
+	private char[] charScratch(int size) {
+		if (charScratch.length<size) charScratch = new char[Math.max(size, charScratch.length*2)];
+		return charScratch;
+	}
+}
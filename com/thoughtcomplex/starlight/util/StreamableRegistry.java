@@ -0,0 +1,200 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps Streamable classes to small numeric type tags, so that objects can be written along with their type and read back without
+ * knowing in advance what class they are. This is what makes it possible to stream a List of assorted Streamables, or any other
+ * polymorphic structure.
+ *
+ * <p>Each tag is registered once, either with a class (in which case its zero-argument constructor is used) or with an
+ * explicit Factory. All of the lookups happen at registration time: reading a tagged object is an array index and a call through a
+ * cached constructor handle, and writing one is a single ClassValue lookup. Tags are written as variable-length ints, so tags under
+ * 128 take a single byte.
+ *
+ * <p>Tag 0 is reserved for null. Registration is thread-safe, and so are reads and writes against a registry which isn't being
+ * changed, but the tags of a stream obviously need to mean the same thing when it's read as when it was written.
+ */
+public class StreamableRegistry {
+	/**
+	 * Creates new, empty instances of a Streamable class, ready for streamFrom.
+	 */
+	public interface Factory<T extends Streamable> {
+		public T create();
+	}
+
+	/** The largest tag which can be registered. Tags are array indices, so keep them small and dense. */
+	public static final int MAX_TAG = 0xFFFF;
+	private static final int NULL_TAG = 0;
+	private static final Integer UNREGISTERED = -1;
+
+	private static final StreamableRegistry DEFAULT = new StreamableRegistry();
+
+	private volatile Factory<?>[] factories = new Factory<?>[16];
+	private final ConcurrentHashMap<Class<?>, Integer> registeredTags = new ConcurrentHashMap<Class<?>, Integer>();
+	private final ClassValue<Integer> tagCache = new ClassValue<Integer>() {
+		@Override
+		protected Integer computeValue(Class<?> type) {
+			Integer tag = registeredTags.get(type);
+			return (tag==null) ? UNREGISTERED : tag;
+		}
+	};
+
+	public StreamableRegistry() {}
+
+	/**
+	 * Returns the registry shared by the whole application. Libraries which write tagged data of their own should generally use
+	 * their own registry instead, so that their tags can't collide with anyone else's.
+	 */
+	public static StreamableRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Registers a class under a tag, to be created through its zero-argument constructor.
+	 * @throws IllegalArgumentException		Thrown if the class has no zero-argument constructor, or if the tag or class is
+	 * 										already registered.
+	 */
+	public <T extends Streamable> void register(int tag, Class<T> type) {
+		MethodHandle constructor = Streamable.Helper.constructorFor(type);
+		if (constructor==null) throw new IllegalArgumentException(type.getName()+" has no zero-argument constructor.");
+		register(tag, type, new ConstructorFactory<T>(type, constructor));
+	}
+
+	/**
+	 * Registers a class under a tag, to be created through the supplied Factory.
+	 * @throws IllegalArgumentException		Thrown if the tag or class is already registered.
+	 */
+	public synchronized <T extends Streamable> void register(int tag, Class<T> type, Factory<? extends T> factory) {
+		if (tag<=NULL_TAG | tag>MAX_TAG) throw new IllegalArgumentException("Tag must be between 1 and "+MAX_TAG);
+		if (factory==null) throw new IllegalArgumentException("Factory cannot be null.");
+		if (tag<factories.length && factories[tag]!=null) throw new IllegalArgumentException("Tag "+tag+" is already registered.");
+		if (registeredTags.containsKey(type)) throw new IllegalArgumentException(type.getName()+" is already registered.");
+
+		Factory<?>[] updated = factories;
+		if (tag>=updated.length) {
+			int newLength = updated.length;
+			while(newLength<=tag) newLength *= 2;
+			Factory<?>[] grown = new Factory<?>[newLength];
+			System.arraycopy(updated, 0, grown, 0, updated.length);
+			updated = grown;
+		} else {
+			updated = updated.clone();
+		}
+		updated[tag] = factory;
+		factories = updated;
+		registeredTags.put(type, tag);
+		tagCache.remove(type); //in case it was looked up before it was registered
+	}
+
+	/**
+	 * Returns the tag a class is registered under, or -1 if it isn't registered. Subclasses don't inherit their parents' tags.
+	 */
+	public int getTag(Class<?> type) {
+		return tagCache.get(type);
+	}
+
+	/**
+	 * Creates a new, empty object of the type registered under a tag.
+	 * @throws IOException		Thrown if nothing is registered under the tag.
+	 */
+	public Streamable create(int tag) throws IOException {
+		Factory<?>[] current = factories;
+		if (tag<=NULL_TAG | tag>=current.length || current[tag]==null) throw new IOException("Unknown type tag "+tag);
+		return current[tag].create();
+	}
+
+	/**
+	 * Writes an object's tag and then the object itself. Null is allowed, and is read back as null.
+	 * @throws IllegalArgumentException		Thrown if the object's class isn't registered.
+	 */
+	public void writeTagged(Streamable value, OutputStream out) throws IOException {
+		if (value==null) {
+			Streamable.Helper.varIntToStream(NULL_TAG, out);
+			return;
+		}
+		int tag = getTag(value.getClass());
+		if (tag<0) throw new IllegalArgumentException(value.getClass().getName()+" is not registered.");
+		Streamable.Helper.varIntToStream(tag, out);
+		value.streamTo(out);
+	}
+
+	/**
+	 * Reads an object written by writeTagged.
+	 * @throws IOException		Thrown if the tag isn't registered, or if anything goes wrong reading the object.
+	 */
+	public Streamable readTagged(InputStream in) throws IOException {
+		int tag = Streamable.Helper.varIntFromStream(in);
+		if (tag==NULL_TAG) return null;
+		Streamable result = create(tag);
+		result.streamFrom(in);
+		return result;
+	}
+
+	/**
+	 * Reads an object written by writeTagged, and checks that it is of the expected type.
+	 * @throws IOException		Thrown if the object turns out to be of some other type, or if anything else goes wrong.
+	 */
+	public <T extends Streamable> T readTagged(Class<T> type, InputStream in) throws IOException {
+		Streamable result = readTagged(in);
+		if (result!=null && !type.isInstance(result)) {
+			throw new IOException("Expected "+type.getName()+" but found "+result.getClass().getName());
+		}
+		return type.cast(result);
+	}
+
+	/**
+	 * Writes the size of the list, followed by each element with its tag.
+	 */
+	public void writeTaggedList(List<? extends Streamable> list, OutputStream out) throws IOException {
+		Streamable.Helper.varIntToStream(list.size(), out);
+		for(Streamable value : list) writeTagged(value, out);
+	}
+
+	/**
+	 * Reads a list written by writeTaggedList.
+	 */
+	public List<Streamable> readTaggedList(InputStream in) throws IOException {
+		return readTaggedList(Streamable.class, in);
+	}
+
+	/**
+	 * Reads a list written by writeTaggedList, checking that every element is of the expected type.
+	 */
+	public <T extends Streamable> List<T> readTaggedList(Class<T> type, InputStream in) throws IOException {
+		int size = Streamable.Helper.varIntFromStream(in);
+		if (size<0) throw new IOException("Invalid list size "+size);
+		ArrayList<T> result = new ArrayList<T>(Math.min(size, 1024)); //don't trust the size too far before the data shows up
+		for(int i=0; i<size; i++) result.add(readTagged(type, in));
+		return result;
+	}
+
+	private static class ConstructorFactory<T extends Streamable> implements Factory<T> {
+		private final Class<T> type;
+		private final MethodHandle constructor;
+
+		private ConstructorFactory(Class<T> type, MethodHandle constructor) {
+			this.type = type;
+			this.constructor = constructor;
+		}
+
+		@Override
+		public T create() {
+			try {
+				return type.cast((Streamable)constructor.invokeExact());
+			} catch (RuntimeException ex) {
+				throw ex;
+			} catch (Error err) {
+				throw err;
+			} catch (Throwable t) {
+				throw new IllegalStateException("Constructor threw a checked exception.", t);
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package com.thoughtcomplex.starlight.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import javax.swing.table.TableModel;
+
+/**
+ * Keeps the listener list for a TableModel and sends out precise events: which rows, which column, and whether they were inserted,
+ * updated or deleted, so a bound JTable only repaints what actually changed.
+ *
+ * <p>Events are reused. A single event object is refilled for every notification, so a burst of edits doesn't allocate anything.
+ * Listeners must therefore read what they need from an event during tableChanged, and not hold on to it afterwards. Standard Swing
+ * listeners, including JTable, already behave this way. If a listener changes the model from inside tableChanged, the nested
+ * notification gets a fresh event so the outer one isn't disturbed.
+ *
+ * <p>Notifications can be handed to an Executor instead of running on the thread which made the change. Each notification then
+ * gets its own event, since it may still be waiting to run when the next one is sent.
+ */
+public class TableModelSupport {
+	private final TableModel source;
+	private final ArrayList<TableModelListener> listeners = new ArrayList<TableModelListener>();
+	private final ReusableEvent pooled;
+	private boolean dispatching = false;
+	private volatile Executor executor = null;
+
+	public TableModelSupport(TableModel source) {
+		this.source = source;
+		this.pooled = new ReusableEvent(source);
+	}
+
+	public void addTableModelListener(TableModelListener l) {
+		listeners.add(l);
+	}
+
+	public void removeTableModelListener(TableModelListener l) {
+		listeners.remove(l);
+	}
+
+	public boolean hasListeners() {
+		return !listeners.isEmpty();
+	}
+
+	/**
+	 * Sets the Executor notifications are sent out on, such as one which hands them to the Swing event thread. Null, the default,
+	 * sends them out immediately on the thread which fired them.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/** Rows firstRow through lastRow, inclusive, were inserted. */
+	public void fireRowsInserted(int firstRow, int lastRow) {
+		fire(TableModelEvent.INSERT, firstRow, lastRow, TableModelEvent.ALL_COLUMNS);
+	}
+
+	/** Every cell in rows firstRow through lastRow, inclusive, may have changed. */
+	public void fireRowsUpdated(int firstRow, int lastRow) {
+		fire(TableModelEvent.UPDATE, firstRow, lastRow, TableModelEvent.ALL_COLUMNS);
+	}
+
+	/** Rows firstRow through lastRow, inclusive, were deleted. The indices are the ones they had before the deletion. */
+	public void fireRowsDeleted(int firstRow, int lastRow) {
+		fire(TableModelEvent.DELETE, firstRow, lastRow, TableModelEvent.ALL_COLUMNS);
+	}
+
+	/** The one cell at row, column changed. */
+	public void fireCellUpdated(int row, int column) {
+		fire(TableModelEvent.UPDATE, row, row, column);
+	}
+
+	/** Any of the data may have changed, and the row count with it, but the columns stayed the same. */
+	public void fireTableChanged() {
+		fire(TableModelEvent.UPDATE, 0, Integer.MAX_VALUE, TableModelEvent.ALL_COLUMNS);
+	}
+
+	/** The columns changed, so listeners should rebuild everything, including their headers. */
+	public void fireStructureChanged() {
+		fire(TableModelEvent.UPDATE, TableModelEvent.HEADER_ROW, TableModelEvent.HEADER_ROW, TableModelEvent.ALL_COLUMNS);
+	}
+
+	private void fire(int type, int firstRow, int lastRow, int column) {
+		if (listeners.isEmpty()) return;
+		Executor executor = this.executor;
+		if (executor!=null) {
+			final TableModelListener[] targets = listeners.toArray(new TableModelListener[listeners.size()]);
+			final ReusableEvent event = new ReusableEvent(source);
+			event.fill(type, firstRow, lastRow, column);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for(TableModelListener listener : targets) listener.tableChanged(event);
+				}
+			});
+			return;
+		}
+		if (dispatching) {
+			//Someone changed the model from inside a listener. The pooled event is still in use further up the stack.
+			ReusableEvent event = new ReusableEvent(source);
+			event.fill(type, firstRow, lastRow, column);
+			for(TableModelListener listener : listeners) listener.tableChanged(event);
+			return;
+		}
+
+		pooled.fill(type, firstRow, lastRow, column);
+		dispatching = true;
+		try {
+			for(TableModelListener listener : listeners) listener.tableChanged(pooled);
+		} finally {
+			dispatching = false;
+		}
+	}
+
+	private static class ReusableEvent extends TableModelEvent {
+		private static final long serialVersionUID = 1L;
+
+		private ReusableEvent(TableModel source) {
+			super(source);
+		}
+
+		private void fill(int type, int firstRow, int lastRow, int column) {
+			this.type = type;
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+			this.column = column;
+		}
+	}
+}